@@ -0,0 +1,58 @@
+package com.lingxi.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.SimpleAsyncTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+/**
+ * 聊天任务执行器配置
+ * 开启spring.threads.virtual.enabled且运行在Java 21+时，聊天、智能体调用和@Async任务使用虚拟线程，
+ * 否则使用spring.task.execution配置的平台线程池
+ */
+@Slf4j
+@Configuration
+public class ExecutorConfig {
+
+    @Value("${spring.threads.virtual.enabled:false}")
+    private boolean virtualThreadsEnabled;
+
+    @Value("${spring.task.execution.pool.core-size:5}")
+    private int corePoolSize;
+
+    @Value("${spring.task.execution.pool.max-size:20}")
+    private int maxPoolSize;
+
+    @Value("${spring.task.execution.pool.queue-capacity:100}")
+    private int queueCapacity;
+
+    @Value("${spring.task.execution.thread-name-prefix:lingxi-async-}")
+    private String threadNamePrefix;
+
+    /**
+     * 聊天任务执行器（同时作为@Async默认执行器）
+     */
+    @Bean(name = {"chatTaskExecutor", "taskExecutor"})
+    public AsyncTaskExecutor chatTaskExecutor() {
+        if (virtualThreadsEnabled) {
+            if (Runtime.version().feature() >= 21) {
+                log.info("Chat task executor running on virtual threads");
+                SimpleAsyncTaskExecutor executor = new SimpleAsyncTaskExecutor(threadNamePrefix);
+                executor.setVirtualThreads(true);
+                return executor;
+            }
+            log.warn("Virtual threads require Java 21+, current runtime is Java {}; falling back to platform thread pool",
+                    Runtime.version().feature());
+        }
+
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(corePoolSize);
+        executor.setMaxPoolSize(maxPoolSize);
+        executor.setQueueCapacity(queueCapacity);
+        executor.setThreadNamePrefix(threadNamePrefix);
+        return executor;
+    }
+}
@@ -390,10 +390,12 @@ public class AgentController {
             
             List<Object[]> statusStats = agentService.getAgentStatsByStatus();
             List<Object[]> typeStats = agentService.getAgentStatsByType();
+            List<Map<String, Object>> callStats = agentService.getAgentCallStats();
             
             return ResponseEntity.ok(Map.of(
                     "statusStats", statusStats,
-                    "typeStats", typeStats
+                    "typeStats", typeStats,
+                    "callStats", callStats
             ));
             
         } catch (Exception e) {
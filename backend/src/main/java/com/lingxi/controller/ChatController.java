@@ -2,29 +2,37 @@ package com.lingxi.controller;
 
 import com.lingxi.entity.ChatHistory;
 import com.lingxi.dto.ChatHistoryDTO;
+import com.lingxi.dto.SequencedStreamEvent;
+import com.lingxi.exception.RateLimitExceededException;
 import com.lingxi.service.ChatService;
+import com.lingxi.service.StreamReplayService;
 import com.lingxi.util.JwtUtil;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.domain.Sort;
 import org.springframework.data.domain.PageImpl;
 import java.util.ArrayList;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import java.util.stream.Collectors;
-import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
 import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.io.IOException;
-import java.util.concurrent.CompletableFuture;
 
 /**
  * 聊天控制器
@@ -37,8 +45,13 @@ import java.util.concurrent.CompletableFuture;
 public class ChatController {
 
     private final ChatService chatService;
+    private final StreamReplayService streamReplayService;
     private final JwtUtil jwtUtil;
 
+    // SSE心跳间隔（毫秒），发送注释行防止代理因空闲断开连接
+    @Value("${app.chat.stream.heartbeat-interval:15000}")
+    private long heartbeatIntervalMs;
+
     /**
      * 发送消息
      */
@@ -77,11 +90,16 @@ public class ChatController {
                             "message", "消息发送成功",
                             "chatHistory", agentResponse
                     ));
+                } catch (RateLimitExceededException e) {
+                    log.warn("Agent {} rate limited for user {}", agentId, userId);
+                    return ResponseEntity.status(e.getStatus())
+                            .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                            .body(agentErrorBody(e));
                 } catch (Exception e) {
                     log.error("Error processing agent response for agent: {}", agentId, e);
                     // 如果智能体回复失败，返回错误信息
                     return ResponseEntity.badRequest()
-                            .body(Map.of("error", "智能体回复失败: " + e.getMessage()));
+                            .body(agentErrorBody(e));
                 }
             }
             
@@ -100,125 +118,141 @@ public class ChatController {
 
     /**
      * 流式发送消息 (Server-Sent Events)
+     * 上游流通过WebClient非阻塞读取并直接转发为SSE，生成回复期间不占用线程。
+     * 智能体事件带有 streamId:seq 形式的事件ID，断线后可通过 GET /chat/stream/{streamId} 续传
      */
     @PostMapping(value = "/send/stream", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
-    public SseEmitter sendMessageStream(
+    public Flux<ServerSentEvent<Object>> sendMessageStream(
             @RequestHeader("Authorization") String authHeader,
             @RequestBody Map<String, Object> request) {
         
-        SseEmitter emitter = new SseEmitter(30000L); // 30秒超时
+        Long userId = extractUserIdFromToken(authHeader);
+        if (userId == null) {
+            // 认证失败时应该返回401状态码而不是SSE事件
+            throw new RuntimeException("Authentication Token已过期，请重新生成");
+        }
         
-        try {
-            Long userId = extractUserIdFromToken(authHeader);
-            if (userId == null) {
-                // 认证失败时应该返回401状态码而不是SSE事件
-                throw new RuntimeException("Authentication Token已过期，请重新生成");
-            }
-            
-            String content = (String) request.get("content");
-            String sessionId = (String) request.get("sessionId");
-            Long agentId = request.get("agentId") != null ? 
-                    Long.valueOf(request.get("agentId").toString()) : null;
-            
-            if (content == null || content.trim().isEmpty()) {
-                emitter.send(SseEmitter.event()
-                    .name("error")
-                    .data(Map.of("error", "消息内容不能为空")));
-                emitter.complete();
-                return emitter;
-            }
-            
-            // 异步处理消息
-            CompletableFuture.runAsync(() -> {
-                try {
-                    // 处理用户消息
-                    ChatHistory userMessage = chatService.processUserMessage(
-                            userId, sessionId, content, null);
-                    
+        String content = (String) request.get("content");
+        String sessionId = (String) request.get("sessionId");
+        Long agentId = request.get("agentId") != null ? 
+                Long.valueOf(request.get("agentId").toString()) : null;
+        
+        if (content == null || content.trim().isEmpty()) {
+            return Flux.just(sseEvent("error", Map.of("error", "消息内容不能为空")));
+        }
+        
+        // 处理用户消息（阻塞JPA操作放到boundedElastic）
+        return withHeartbeat(Mono.fromCallable(() -> chatService.processUserMessage(userId, sessionId, content, null))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMapMany(userMessage -> {
                     // 发送用户消息确认
-                    emitter.send(SseEmitter.event()
-                        .name("user_message")
-                        .data(Map.of(
+                    ServerSentEvent<Object> userEvent = sseEvent("user_message", Map.of(
                             "message", "用户消息已接收",
                             "chatHistory", userMessage
-                        )));
+                    ));
                     
-                    // 如果指定了智能体ID，调用智能体生成流式回复
-                    if (agentId != null) {
-                        // 发送开始生成事件
-                        emitter.send(SseEmitter.event()
-                            .name("agent_start")
-                            .data(Map.of("message", "智能体开始生成回复...")));
-                        
-                        try {
-                            // 这里需要修改ChatService支持流式回调
-                            ChatHistory agentResponse = chatService.processAgentResponseByIdWithCallback(
-                                userMessage, agentId, (chunk) -> {
-                                    try {
-                                        // 发送流式数据块 - 使用标准SSE格式，指定事件名称
-                                        emitter.send(SseEmitter.event()
-                                            .name("chunk")
-                                            .data(Map.of("chunk", chunk)));
-                                        log.debug("发送SSE数据块: {}", chunk);
-                                    } catch (IOException e) {
-                                        log.error("Error sending SSE chunk", e);
-                                    }
-                                });
-                            
-                            // 发送完成事件
-                            emitter.send(SseEmitter.event()
-                                .name("agent_complete")
-                                .data(Map.of(
-                                    "message", "智能体回复完成",
-                                    "chatHistory", agentResponse
-                                )));
-                            
-                            log.info("Agent {} responded to user {} message via stream", agentId, userId);
-                            
-                        } catch (Exception e) {
-                            log.error("Error processing agent response for agent: {}", agentId, e);
-                            emitter.send(SseEmitter.event()
-                                .name("error")
-                                .data(Map.of("error", "智能体回复失败: " + e.getMessage())));
-                        }
-                    } else {
-                        emitter.send(SseEmitter.event()
-                            .name("info")
-                            .data(Map.of("message", "消息已接收，但未指定智能体")));
+                    if (agentId == null) {
+                        return Flux.just(userEvent,
+                                sseEvent("info", Map.of("message", "消息已接收，但未指定智能体")));
                     }
                     
-                    emitter.complete();
+                    // 调用智能体生成流式回复（服务端独立订阅，客户端断线不中断上游）
+                    Flux<SequencedStreamEvent> agentEvents = chatService.streamAgentResponseById(userMessage, agentId)
+                            .map(event -> event.isComplete()
+                                    ? SequencedStreamEvent.of("agent_complete", Map.of(
+                                            "message", "智能体回复完成",
+                                            "chatHistory", event.getChatHistory()))
+                                    : SequencedStreamEvent.of("chunk", Map.of("chunk", event.getChunk())))
+                            .doOnComplete(() -> log.info("Agent {} responded to user {} message via stream", agentId, userId))
+                            .onErrorResume(e -> {
+                                log.error("Error processing agent response for agent: {}", agentId, e);
+                                return Flux.just(SequencedStreamEvent.of("error", agentErrorBody(e)));
+                            });
+                    String streamId = streamReplayService.start(userId, agentEvents);
                     
-                } catch (Exception e) {
+                    ServerSentEvent<Object> startEvent = ServerSentEvent.<Object>builder(Map.of(
+                                    "message", "智能体开始生成回复...",
+                                    "streamId", streamId))
+                            .id(streamId + ":0")
+                            .event("agent_start")
+                            .build();
+                    
+                    return Flux.concat(
+                            Flux.just(userEvent, startEvent),
+                            streamReplayService.resume(streamId, userId, 0).map(this::sseEvent));
+                })
+                .onErrorResume(e -> {
                     log.error("Error in stream processing", e);
-                    try {
-                        emitter.send(SseEmitter.event()
-                            .name("error")
-                            .data(Map.of("error", e.getMessage())));
-                        emitter.complete();
-                    } catch (IOException ioException) {
-                        log.error("Error sending error event", ioException);
-                    }
-                }
-            });
-            
-        } catch (Exception e) {
-            log.error("Error setting up stream", e);
-            // 如果是认证错误，直接抛出异常让Spring处理
-            if (e.getMessage() != null && e.getMessage().contains("Authentication Token已过期")) {
-                throw new RuntimeException(e.getMessage());
-            }
+                    return Flux.just(sseEvent("error", Map.of("error", String.valueOf(e.getMessage()))));
+                }));
+    }
+
+    /**
+     * 续传流式回复
+     * 补发Last-Event-ID（streamId:seq）之后的事件，并继续接收实时事件，不重新调用智能体
+     */
+    @GetMapping(value = "/stream/{streamId}", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+    public Flux<ServerSentEvent<Object>> resumeMessageStream(
+            @RequestHeader("Authorization") String authHeader,
+            @PathVariable String streamId,
+            @RequestHeader(value = "Last-Event-ID", required = false) String lastEventId,
+            @RequestParam(required = false) Long lastSeq) {
+        
+        Long userId = extractUserIdFromToken(authHeader);
+        if (userId == null) {
+            throw new RuntimeException("Authentication Token已过期，请重新生成");
+        }
+        
+        long resumeFrom = lastSeq != null ? lastSeq : 0;
+        if (lastEventId != null && lastEventId.startsWith(streamId + ":")) {
             try {
-                emitter.send(SseEmitter.event()
-                    .name("error")
-                    .data(Map.of("error", e.getMessage())));
-                emitter.complete();
-            } catch (IOException ioException) {
-                log.error("Error sending initial error event", ioException);
+                resumeFrom = Long.parseLong(lastEventId.substring(streamId.length() + 1));
+            } catch (NumberFormatException e) {
+                log.warn("Invalid Last-Event-ID: {}", lastEventId);
             }
         }
         
-        return emitter;
+        try {
+            return withHeartbeat(streamReplayService.resume(streamId, userId, resumeFrom)
+                    .map(this::sseEvent)
+                    .onErrorResume(e -> Flux.just(sseEvent("error", Map.of("error", "智能体回复失败: " + e.getMessage())))));
+        } catch (Exception e) {
+            return Flux.just(sseEvent("error", Map.of("error", String.valueOf(e.getMessage()))));
+        }
+    }
+
+    /**
+     * 在事件流中穿插心跳注释，事件流结束或客户端断开时心跳随之停止
+     */
+    private Flux<ServerSentEvent<Object>> withHeartbeat(Flux<ServerSentEvent<Object>> events) {
+        if (heartbeatIntervalMs <= 0) {
+            return events;
+        }
+        Sinks.Empty<Void> done = Sinks.empty();
+        Flux<ServerSentEvent<Object>> heartbeats = Flux.interval(Duration.ofMillis(heartbeatIntervalMs))
+                .map(tick -> ServerSentEvent.<Object>builder().comment("heartbeat").build())
+                .takeUntilOther(done.asMono());
+        return Flux.merge(events.doFinally(signal -> done.tryEmitEmpty()), heartbeats);
+    }
+
+    /**
+     * 智能体回复失败的错误内容，限流时附带retryAfter（秒）
+     */
+    private Map<String, Object> agentErrorBody(Throwable e) {
+        Map<String, Object> body = new HashMap<>();
+        body.put("error", "智能体回复失败: " + e.getMessage());
+        if (e instanceof RateLimitExceededException rateLimited) {
+            body.put("retryAfter", rateLimited.getRetryAfterSeconds());
+        }
+        return body;
+    }
+
+    private ServerSentEvent<Object> sseEvent(String name, Object data) {
+        return ServerSentEvent.builder(data).event(name).build();
+    }
+
+    private ServerSentEvent<Object> sseEvent(SequencedStreamEvent event) {
+        return ServerSentEvent.builder(event.getData()).id(event.getEventId()).event(event.getEvent()).build();
     }
 
     /**
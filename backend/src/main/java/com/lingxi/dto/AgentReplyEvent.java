@@ -0,0 +1,17 @@
+package com.lingxi.dto;
+
+import com.lingxi.entity.ChatHistory;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * 智能体回复完成事件
+ * 后台生成的回复（如@提及）保存后发布，由WebSocket推送给用户
+ */
+@Data
+@AllArgsConstructor
+public class AgentReplyEvent {
+
+    private Long userId;
+    private ChatHistory reply;
+}
@@ -0,0 +1,36 @@
+package com.lingxi.dto;
+
+import com.lingxi.entity.ChatHistory;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 智能体流式回复事件
+ * CHUNK携带增量内容，COMPLETE携带已保存的回复记录
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AgentStreamEvent {
+
+    private EventType type;
+    private String chunk;
+    private ChatHistory chatHistory;
+
+    public static AgentStreamEvent chunk(String chunk) {
+        return new AgentStreamEvent(EventType.CHUNK, chunk, null);
+    }
+
+    public static AgentStreamEvent complete(ChatHistory chatHistory) {
+        return new AgentStreamEvent(EventType.COMPLETE, null, chatHistory);
+    }
+
+    public boolean isComplete() {
+        return type == EventType.COMPLETE;
+    }
+
+    public enum EventType {
+        CHUNK, COMPLETE
+    }
+}
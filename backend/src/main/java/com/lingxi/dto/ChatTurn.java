@@ -0,0 +1,20 @@
+package com.lingxi.dto;
+
+import com.lingxi.entity.ChatHistory;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 对话轮次投影
+ * 构建提示词只需要角色和内容，避免加载User/Agent实体
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ChatTurn {
+
+    private ChatHistory.MessageType messageType;
+    private String content;
+    private Integer sequenceNumber;
+}
@@ -0,0 +1,31 @@
+package com.lingxi.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * 带序号的流事件
+ * SSE事件ID为 streamId:seq，断线重连时据此补发之后的事件
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class SequencedStreamEvent {
+
+    private String streamId;
+    private long seq;
+    private String event;
+    private Object data;
+
+    /**
+     * 未编号的事件，序号由StreamReplayService分配
+     */
+    public static SequencedStreamEvent of(String event, Object data) {
+        return new SequencedStreamEvent(null, 0, event, data);
+    }
+
+    public String getEventId() {
+        return streamId + ":" + seq;
+    }
+}
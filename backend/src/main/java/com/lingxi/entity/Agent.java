@@ -9,6 +9,7 @@ import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 import lombok.AllArgsConstructor;
 import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.DynamicUpdate;
 import org.hibernate.annotations.UpdateTimestamp;
 
 import java.time.LocalDateTime;
@@ -21,6 +22,7 @@ import java.util.Set;
  * 管理智能体配置、审核状态和调用信息
  */
 @Entity
+@DynamicUpdate
 @Table(name = "agents", indexes = {
     @Index(name = "idx_agent_name", columnList = "name"),
     @Index(name = "idx_agent_status", columnList = "status"),
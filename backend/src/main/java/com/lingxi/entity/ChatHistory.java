@@ -21,7 +21,8 @@ import java.time.LocalDateTime;
 @Table(name = "chat_history", indexes = {
     @Index(name = "idx_chat_user_session", columnList = "user_id, session_id"),
     @Index(name = "idx_chat_created_at", columnList = "created_at"),
-    @Index(name = "idx_chat_agent", columnList = "agent_id")
+    @Index(name = "idx_chat_agent", columnList = "agent_id"),
+    @Index(name = "idx_chat_session_seq", columnList = "session_id, sequence_number")
 })
 @Data
 @NoArgsConstructor
@@ -1,6 +1,7 @@
 package com.lingxi.exception;
 
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.AccessDeniedException;
@@ -41,7 +42,11 @@ public class GlobalExceptionHandler {
                 .path(getPath(request))
                 .build();
         
-        return new ResponseEntity<>(errorResponse, e.getStatus());
+        ResponseEntity.BodyBuilder response = ResponseEntity.status(e.getStatus());
+        if (e instanceof RateLimitExceededException rateLimited) {
+            response.header(HttpHeaders.RETRY_AFTER, String.valueOf(rateLimited.getRetryAfterSeconds()));
+        }
+        return response.body(errorResponse);
     }
 
     /**
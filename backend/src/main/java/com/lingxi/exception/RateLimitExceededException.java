@@ -0,0 +1,20 @@
+package com.lingxi.exception;
+
+import org.springframework.http.HttpStatus;
+
+/**
+ * 限流异常（429），携带建议的重试等待秒数，由异常处理器写入Retry-After
+ */
+public class RateLimitExceededException extends BusinessException {
+
+    private final long retryAfterSeconds;
+
+    public RateLimitExceededException(String message, long waitMs) {
+        super(message, HttpStatus.TOO_MANY_REQUESTS, "RATE_LIMITED");
+        this.retryAfterSeconds = Math.max(1, (waitMs + 999) / 1000);
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
@@ -4,6 +4,7 @@ import com.lingxi.entity.Agent;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.query.Param;
 import org.springframework.stereotype.Repository;
@@ -168,6 +169,27 @@ public interface AgentRepository extends JpaRepository<Agent, Long> {
     @Query("SELECT SUM(a.totalCalls) FROM Agent a")
     Long sumTodayCalls();
 
+    /**
+     * 批量累加调用统计（平均响应时间按衰减系数合并批次均值）
+     */
+    @Modifying
+    @Query("UPDATE Agent a SET a.totalCalls = COALESCE(a.totalCalls, 0) + :calls, " +
+           "a.successCalls = COALESCE(a.successCalls, 0) + :successCalls, " +
+           "a.averageResponseTime = CASE WHEN :samples = 0 THEN a.averageResponseTime " +
+           "WHEN a.averageResponseTime IS NULL THEN :meanResponseTime " +
+           "ELSE a.averageResponseTime * :decay + :meanResponseTime * (1 - :decay) END, " +
+           "a.lastCallTime = CASE WHEN a.lastCallTime IS NULL OR a.lastCallTime < :lastCallTime " +
+           "THEN :lastCallTime ELSE a.lastCallTime END, " +
+           "a.updatedAt = :now WHERE a.id = :agentId")
+    int incrementCallStats(@Param("agentId") Long agentId,
+                           @Param("calls") long calls,
+                           @Param("successCalls") long successCalls,
+                           @Param("samples") long samples,
+                           @Param("meanResponseTime") double meanResponseTime,
+                           @Param("decay") double decay,
+                           @Param("lastCallTime") LocalDateTime lastCallTime,
+                           @Param("now") LocalDateTime now);
+
     /**
      * 查找特定端点的智能体
      */
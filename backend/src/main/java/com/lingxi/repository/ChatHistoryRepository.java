@@ -1,8 +1,10 @@
 package com.lingxi.repository;
 
+import com.lingxi.dto.ChatTurn;
 import com.lingxi.entity.ChatHistory;
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.EntityGraph;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
@@ -29,6 +31,12 @@ public interface ChatHistoryRepository extends JpaRepository<ChatHistory, Long>
      */
     List<ChatHistory> findByUser_IdAndSessionIdOrderBySequenceNumberAsc(Long userId, String sessionId);
 
+    /**
+     * 根据用户ID和会话ID查找最近的聊天历史（按序号倒序，由Pageable限制条数）
+     */
+    @EntityGraph(attributePaths = {"user", "agent"})
+    List<ChatHistory> findByUser_IdAndSessionIdOrderBySequenceNumberDesc(Long userId, String sessionId, Pageable pageable);
+
     /**
      * 根据用户ID和智能体ID查找聊天历史
      */
@@ -39,6 +47,22 @@ public interface ChatHistoryRepository extends JpaRepository<ChatHistory, Long>
      */
     List<ChatHistory> findByUser_IdAndAgent_IdAndSessionIdOrderBySequenceNumberAsc(Long userId, Long agentId, String sessionId);
 
+    /**
+     * 根据用户ID、智能体ID和会话ID查找最近的聊天历史（按序号倒序，由Pageable限制条数）
+     */
+    @EntityGraph(attributePaths = {"user", "agent"})
+    List<ChatHistory> findByUser_IdAndAgent_IdAndSessionIdOrderBySequenceNumberDesc(Long userId, Long agentId, String sessionId, Pageable pageable);
+
+    /**
+     * 查找构建提示词所需的最近对话轮次：用户消息及指定智能体的成功回复（按序号倒序）
+     */
+    @Query("SELECT new com.lingxi.dto.ChatTurn(ch.messageType, ch.content, ch.sequenceNumber) FROM ChatHistory ch LEFT JOIN ch.agent a " +
+           "WHERE ch.user.id = :userId AND ch.sessionId = :sessionId AND ch.sequenceNumber < :beforeSequence " +
+           "AND (ch.messageType = 'USER' OR (a.id = :agentId AND ch.status = 'SUCCESS')) ORDER BY ch.sequenceNumber DESC")
+    List<ChatTurn> findRecentTurns(@Param("userId") Long userId, @Param("sessionId") String sessionId,
+                                   @Param("agentId") Long agentId, @Param("beforeSequence") Integer beforeSequence,
+                                   Pageable pageable);
+
     /**
      * 根据会话ID查找聊天历史
      */
@@ -78,6 +102,12 @@ public interface ChatHistoryRepository extends JpaRepository<ChatHistory, Long>
     @Query("SELECT ch FROM ChatHistory ch WHERE ch.sessionId = :sessionId ORDER BY ch.sequenceNumber DESC")
     List<ChatHistory> findLastMessageInSession(@Param("sessionId") String sessionId, Pageable pageable);
 
+    /**
+     * 查找会话中的最大序号
+     */
+    @Query("SELECT MAX(ch.sequenceNumber) FROM ChatHistory ch WHERE ch.sessionId = :sessionId")
+    Integer findMaxSequenceNumber(@Param("sessionId") String sessionId);
+
     /**
      * 查找用户在特定时间范围内的聊天历史
      */
@@ -0,0 +1,35 @@
+package com.lingxi.security;
+
+import com.lingxi.entity.User;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+import java.security.Principal;
+
+/**
+ * 已认证用户主体
+ * 只保存认证所需的用户快照（ID、用户名、角色、状态），不持有JPA实体
+ */
+@Getter
+@AllArgsConstructor
+public class AuthenticatedUser implements Principal {
+
+    private final Long id;
+    private final String username;
+    private final User.UserRole role;
+    private final User.UserStatus status;
+
+    public static AuthenticatedUser from(User user) {
+        return new AuthenticatedUser(user.getId(), user.getUsername(), user.getRole(), user.getStatus());
+    }
+
+    @Override
+    public String getName() {
+        return username;
+    }
+
+    @Override
+    public String toString() {
+        return username;
+    }
+}
@@ -1,7 +1,7 @@
 package com.lingxi.security;
 
 import com.lingxi.entity.User;
-import com.lingxi.repository.UserRepository;
+import com.lingxi.service.TokenRevocationService;
 import com.lingxi.util.JwtUtil;
 import io.jsonwebtoken.Claims;
 import jakarta.servlet.FilterChain;
@@ -25,6 +25,7 @@ import java.util.Optional;
 /**
  * JWT认证过滤器
  * 处理每个请求的JWT验证
+ * 已验证的令牌和用户状态均有缓存，命中时认证只需一次哈希查找
  */
 @Slf4j
 @Component
@@ -32,7 +33,8 @@ import java.util.Optional;
 public class JwtAuthenticationFilter extends OncePerRequestFilter {
 
     private final JwtUtil jwtUtil;
-    private final UserRepository userRepository;
+    private final UserStatusCache userStatusCache;
+    private final TokenRevocationService tokenRevocationService;
 
     @Override
     protected void doFilterInternal(HttpServletRequest request, 
@@ -42,7 +44,7 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
         try {
             String token = extractTokenFromRequest(request);
             
-            if (token != null && jwtUtil.validateToken(token)) {
+            if (token != null && jwtUtil.validateToken(token) && !tokenRevocationService.isRevoked(token)) {
                 authenticateUser(token, request);
             }
         } catch (Exception e) {
@@ -84,11 +86,11 @@ public class JwtAuthenticationFilter extends OncePerRequestFilter {
             String role = claims.get("role", String.class);
             
             if (username != null && SecurityContextHolder.getContext().getAuthentication() == null) {
-                // 验证用户是否存在且状态正常
-                Optional<User> userOpt = userRepository.findByUsername(username);
+                // 验证用户是否存在且状态正常（短时缓存）
+                Optional<AuthenticatedUser> userOpt = userStatusCache.get(username);
                 
                 if (userOpt.isPresent()) {
-                    User user = userOpt.get();
+                    AuthenticatedUser user = userOpt.get();
                     
                     // 检查用户状态
                     if (user.getStatus() != User.UserStatus.ACTIVE) {
@@ -0,0 +1,171 @@
+package com.lingxi.security;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lingxi.service.RateLimiterService;
+import com.lingxi.util.JwtUtil;
+import jakarta.annotation.PostConstruct;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.security.web.util.matcher.IpAddressMatcher;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.StringUtils;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * 用户请求限流过滤器
+ * 对发送消息等会调用上游智能体的接口，按用户（未登录时按客户端IP）
+ * 同时执行每分钟和每小时两个令牌桶，超限返回429及Retry-After
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class RateLimitFilter extends OncePerRequestFilter {
+
+    private static final long MINUTE_MS = 60_000L;
+    private static final long HOUR_MS = 3_600_000L;
+    private static final String SCOPE_KEY_PREFIX = "user:";
+    private static final Pattern IP_LITERAL = Pattern.compile("[0-9a-fA-F:.]+");
+
+    private final RateLimiterService rateLimiterService;
+    private final JwtUtil jwtUtil;
+    private final ObjectMapper objectMapper;
+
+    private final AntPathMatcher pathMatcher = new AntPathMatcher();
+
+    @Value("${app.security.rate-limit.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.security.rate-limit.requests-per-minute:60}")
+    private long requestsPerMinute;
+
+    @Value("${app.security.rate-limit.requests-per-hour:1000}")
+    private long requestsPerHour;
+
+    @Value("${app.security.rate-limit.paths:/api/chat/send,/api/chat/send/**}")
+    private List<String> limitedPaths;
+
+    @Value("${app.security.rate-limit.trusted-proxies:127.0.0.1,::1}")
+    private List<String> trustedProxies;
+
+    private List<IpAddressMatcher> trustedProxyMatchers = List.of();
+
+    @PostConstruct
+    public void init() {
+        trustedProxyMatchers = trustedProxies.stream()
+                .map(String::trim)
+                .filter(StringUtils::hasText)
+                .map(IpAddressMatcher::new)
+                .toList();
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request,
+                                    HttpServletResponse response,
+                                    FilterChain filterChain) throws ServletException, IOException {
+        String key = SCOPE_KEY_PREFIX + resolveClientKey(request);
+
+        // 两个桶一起检查，任一不足则都不扣，避免被每小时额度拒绝的请求消耗每分钟额度
+        long waitMs = rateLimiterService.tryAcquireAll(RateLimiterService.SCOPE_USER, key, List.of(
+                new RateLimiterService.Limit(requestsPerMinute, MINUTE_MS),
+                new RateLimiterService.Limit(requestsPerHour, HOUR_MS)));
+
+        if (waitMs > 0) {
+            log.warn("Rate limit exceeded for {} on {} {}", key, request.getMethod(), request.getRequestURI());
+            writeTooManyRequests(request, response, waitMs);
+            return;
+        }
+
+        filterChain.doFilter(request, response);
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        if (!enabled || "OPTIONS".equalsIgnoreCase(request.getMethod())) {
+            return true;
+        }
+        String path = request.getRequestURI();
+        return limitedPaths.stream().noneMatch(pattern -> pathMatcher.match(pattern.trim(), path));
+    }
+
+    /**
+     * 限流主体：有效令牌取用户ID，否则取客户端IP
+     * 只有直连地址是受信代理时才使用X-Forwarded-For，取从右往左第一个非受信代理的地址，
+     * 客户端自行添加的X-Forwarded-For无法指定限流桶
+     */
+    private String resolveClientKey(HttpServletRequest request) {
+        String token = jwtUtil.extractTokenFromHeader(request.getHeader("Authorization"));
+        if (token != null) {
+            try {
+                Long userId = jwtUtil.getUserIdFromToken(token);
+                if (userId != null) {
+                    return userId.toString();
+                }
+            } catch (Exception e) {
+                log.debug("Rate limit key falls back to client address: {}", e.getMessage());
+            }
+        }
+        String clientAddress = request.getRemoteAddr();
+        String forwardedFor = request.getHeader("X-Forwarded-For");
+        if (StringUtils.hasText(forwardedFor) && isTrustedProxy(clientAddress)) {
+            String[] hops = forwardedFor.split(",");
+            for (int i = hops.length - 1; i >= 0; i--) {
+                String hop = hops[i].trim();
+                if (!StringUtils.hasText(hop)) {
+                    continue;
+                }
+                clientAddress = hop;
+                if (!isTrustedProxy(hop)) {
+                    break;
+                }
+            }
+        }
+        return "ip:" + clientAddress;
+    }
+
+    private boolean isTrustedProxy(String address) {
+        // 只匹配IP字面量，避免对头中的主机名做DNS解析
+        if (!IP_LITERAL.matcher(address).matches()) {
+            return false;
+        }
+        try {
+            return trustedProxyMatchers.stream().anyMatch(matcher -> matcher.matches(address));
+        } catch (IllegalArgumentException e) {
+            // 非法地址格式
+            return false;
+        }
+    }
+
+    private void writeTooManyRequests(HttpServletRequest request, HttpServletResponse response, long waitMs) throws IOException {
+        long retryAfterSeconds = Math.max(1, (waitMs + 999) / 1000);
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds));
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding("UTF-8");
+
+        Map<String, Object> errorResponse = new HashMap<>();
+        errorResponse.put("timestamp", LocalDateTime.now().toString());
+        errorResponse.put("status", HttpStatus.TOO_MANY_REQUESTS.value());
+        errorResponse.put("error", "Too Many Requests");
+        errorResponse.put("message", "请求过于频繁，请稍后再试");
+        errorResponse.put("retryAfter", retryAfterSeconds);
+        errorResponse.put("path", request.getRequestURI());
+
+        objectMapper.writeValue(response.getOutputStream(), errorResponse);
+    }
+}
@@ -0,0 +1,87 @@
+package com.lingxi.security;
+
+import com.lingxi.repository.UserRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 用户认证状态缓存
+ * 按用户名短时缓存用户快照，JWT认证时不必每个请求都查询users表。
+ * 角色或状态变更时调用invalidate（事务提交后生效），其他途径的变更最多延迟一个TTL
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class UserStatusCache {
+
+    private final UserRepository userRepository;
+
+    @Value("${app.security.user-cache.ttl:30000}")
+    private long ttlMillis;
+
+    @Value("${app.security.user-cache.max-size:10000}")
+    private int maxSize;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * 获取用户快照，缓存未命中或已过期时查询数据库
+     */
+    public Optional<AuthenticatedUser> get(String username) {
+        long now = System.currentTimeMillis();
+        Entry entry = entries.get(username);
+        if (entry != null && entry.expiresAt > now) {
+            return Optional.of(entry.user);
+        }
+
+        Optional<AuthenticatedUser> user = userRepository.findByUsername(username).map(AuthenticatedUser::from);
+        if (user.isPresent() && entries.size() < maxSize) {
+            entries.put(username, new Entry(user.get(), now + ttlMillis));
+        } else {
+            entries.remove(username);
+        }
+        return user;
+    }
+
+    /**
+     * 用户角色或状态变更后失效
+     */
+    public void invalidate(String username) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    entries.remove(username);
+                }
+            });
+        }
+        entries.remove(username);
+    }
+
+    /**
+     * 清理过期条目
+     */
+    @Scheduled(fixedRate = 60000) // 每分钟执行一次
+    public void cleanupExpiredEntries() {
+        long now = System.currentTimeMillis();
+        entries.values().removeIf(entry -> entry.expiresAt <= now);
+    }
+
+    private static class Entry {
+        private final AuthenticatedUser user;
+        private final long expiresAt;
+
+        Entry(AuthenticatedUser user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package com.lingxi.service;
+
+import com.lingxi.entity.Agent;
+import com.lingxi.repository.AgentRepository;
+import com.lingxi.util.AgentMentionIndex;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageImpl;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 智能体近端缓存
+ * 已审核通过的智能体整体加载为不可变快照，按ID、名称和启用列表提供查询，未命中时回落到数据库。
+ * 智能体增删改、审核、启停后在事务提交后失效本地快照，并通过Redis发布/订阅通知其他节点；
+ * 快照另有TTL，调用统计等计数字段的延迟不超过TTL。
+ * 快照同时包含启用智能体的@提及索引，随快照一起重建
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class AgentCacheService {
+
+    private static final String CHANNEL = "agent:cache:invalidate";
+
+    // 审核通过列表允许在内存中排序的字段
+    private static final Map<String, Comparator<Agent>> SORTABLE_FIELDS = Map.of(
+            "createdAt", Comparator.comparing(Agent::getCreatedAt, Comparator.nullsLast(Comparator.naturalOrder())),
+            "updatedAt", Comparator.comparing(Agent::getUpdatedAt, Comparator.nullsLast(Comparator.naturalOrder())),
+            "priority", Comparator.comparing(Agent::getPriority, Comparator.nullsLast(Comparator.naturalOrder())),
+            "name", Comparator.comparing(Agent::getName, Comparator.nullsLast(Comparator.naturalOrder())));
+
+    private final AgentRepository agentRepository;
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    @Value("${app.agent.cache.ttl:60000}")
+    private long ttlMs;
+
+    private volatile Snapshot snapshot;
+
+    // 每次失效递增，加载期间发生失效则丢弃加载结果
+    private final AtomicLong generation = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener((message, pattern) -> invalidateLocal(), new ChannelTopic(CHANNEL));
+    }
+
+    /**
+     * 按ID查询智能体
+     */
+    public Optional<Agent> findById(Long agentId) {
+        Agent agent = getSnapshot().byId.get(agentId);
+        return agent != null ? Optional.of(agent) : agentRepository.findById(agentId);
+    }
+
+    /**
+     * 按名称查询智能体
+     */
+    public Optional<Agent> findByName(String name) {
+        Agent agent = getSnapshot().byName.get(name);
+        return agent != null ? Optional.of(agent) : agentRepository.findByName(name);
+    }
+
+    /**
+     * 已审核且启用的智能体（按优先级降序）
+     */
+    public List<Agent> getActiveAgents() {
+        return getSnapshot().active;
+    }
+
+    /**
+     * 解析消息中@提及的启用智能体（按出现顺序去重），未知名称不查询数据库
+     */
+    public List<Agent> resolveMentions(String content) {
+        return getSnapshot().mentionIndex.match(content);
+    }
+
+    /**
+     * 分页获取已审核通过的智能体，排序字段不支持内存排序时查询数据库
+     */
+    public Page<Agent> getApprovedAgents(Pageable pageable) {
+        Comparator<Agent> comparator = toComparator(pageable.getSort());
+        if (comparator == null) {
+            return agentRepository.findApprovedAgents(pageable);
+        }
+        List<Agent> sorted = getSnapshot().approved.stream().sorted(comparator).toList();
+        int from = (int) Math.min(pageable.getOffset(), sorted.size());
+        int to = Math.min(from + pageable.getPageSize(), sorted.size());
+        return new PageImpl<>(sorted.subList(from, to), pageable, sorted.size());
+    }
+
+    /**
+     * 失效缓存（当前事务提交后生效，并通知其他节点）
+     */
+    public void invalidate() {
+        Runnable action = () -> {
+            invalidateLocal();
+            try {
+                stringRedisTemplate.convertAndSend(CHANNEL, "*");
+            } catch (Exception e) {
+                log.warn("Failed to publish agent cache invalidation: {}", e.getMessage());
+            }
+        };
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    private void invalidateLocal() {
+        generation.incrementAndGet();
+        snapshot = null;
+    }
+
+    private Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        if (current != null && current.expiresAt > System.currentTimeMillis()) {
+            return current;
+        }
+        synchronized (this) {
+            current = snapshot;
+            if (current != null && current.expiresAt > System.currentTimeMillis()) {
+                return current;
+            }
+            long loadGeneration = generation.get();
+            Snapshot loaded = new Snapshot(agentRepository.findApprovedAgents(), System.currentTimeMillis() + ttlMs);
+            if (generation.get() == loadGeneration) {
+                snapshot = loaded;
+            }
+            return loaded;
+        }
+    }
+
+    private Comparator<Agent> toComparator(Sort sort) {
+        if (sort.isUnsorted()) {
+            // 与findApprovedAgents一致：优先级降序、创建时间升序
+            return SORTABLE_FIELDS.get("priority").reversed().thenComparing(SORTABLE_FIELDS.get("createdAt"));
+        }
+        Comparator<Agent> comparator = null;
+        for (Sort.Order order : sort) {
+            Comparator<Agent> field = SORTABLE_FIELDS.get(order.getProperty());
+            if (field == null) {
+                return null;
+            }
+            if (order.isDescending()) {
+                field = field.reversed();
+            }
+            comparator = comparator == null ? field : comparator.thenComparing(field);
+        }
+        return comparator;
+    }
+
+    /**
+     * 已审核通过的智能体快照
+     */
+    private static class Snapshot {
+        private final List<Agent> approved;
+        private final List<Agent> active;
+        private final Map<Long, Agent> byId;
+        private final Map<String, Agent> byName;
+        private final AgentMentionIndex mentionIndex;
+        private final long expiresAt;
+
+        Snapshot(List<Agent> approvedAgents, long expiresAt) {
+            this.approved = Collections.unmodifiableList(approvedAgents);
+            this.active = approvedAgents.stream()
+                    .filter(agent -> Boolean.TRUE.equals(agent.getEnabled()))
+                    .toList();
+            this.byId = new HashMap<>();
+            this.byName = new HashMap<>();
+            for (Agent agent : approvedAgents) {
+                byId.put(agent.getId(), agent);
+                byName.put(agent.getName(), agent);
+            }
+            this.mentionIndex = AgentMentionIndex.build(active);
+            this.expiresAt = expiresAt;
+        }
+    }
+}
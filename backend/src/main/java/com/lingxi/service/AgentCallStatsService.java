@@ -0,0 +1,176 @@
+package com.lingxi.service;
+
+import com.lingxi.entity.Agent;
+import com.lingxi.repository.AgentRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 智能体调用统计服务
+ * 调用统计先累加到内存中的LongAdder（无锁），由定时任务批量增量写入agents表，
+ * 避免热门智能体每次回复都更新同一行。读取时合并已写入值与待写入增量
+ *
+ * 平均响应时间沿用 avg = avg * 0.9 + rt * 0.1 的指数滑动平均，
+ * 一批n个样本按批次均值近似：avg = avg * 0.9^n + mean * (1 - 0.9^n)
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class AgentCallStatsService {
+
+    private static final double RESPONSE_TIME_DECAY = 0.9;
+
+    private final AgentRepository agentRepository;
+    private final TransactionTemplate transactionTemplate;
+
+    private final ConcurrentHashMap<Long, PendingStats> pending = new ConcurrentHashMap<>();
+
+    /**
+     * 记录一次智能体调用
+     */
+    public void record(Long agentId, Long responseTime, boolean success) {
+        PendingStats stats = pending.computeIfAbsent(agentId, id -> new PendingStats());
+        stats.calls.increment();
+        if (success) {
+            stats.successCalls.increment();
+        }
+        if (responseTime != null && responseTime > 0) {
+            stats.responseTimeSamples.increment();
+            stats.responseTimeSum.add(responseTime);
+        }
+        stats.lastCallMillis.accumulate(System.currentTimeMillis());
+    }
+
+    /**
+     * 定时将待写入增量刷入数据库
+     */
+    @Scheduled(fixedDelayString = "${app.agent.stats.flush-interval:5000}")
+    public void flush() {
+        pending.forEach((agentId, stats) -> {
+            Snapshot snapshot = stats.drain();
+            if (snapshot.calls == 0 && snapshot.samples == 0) {
+                return;
+            }
+            try {
+                transactionTemplate.executeWithoutResult(status -> agentRepository.incrementCallStats(
+                        agentId, snapshot.calls, snapshot.successCalls, snapshot.samples,
+                        snapshot.mean(), Math.pow(RESPONSE_TIME_DECAY, snapshot.samples),
+                        snapshot.lastCallTime(), LocalDateTime.now()));
+            } catch (Exception e) {
+                log.warn("Failed to flush call stats for agent {}, will retry: {}", agentId, e.getMessage());
+                stats.restore(snapshot);
+            }
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        flush();
+    }
+
+    /**
+     * 合并数据库值与待写入增量后的调用统计
+     */
+    public Map<String, Object> getStats(Agent agent) {
+        long totalCalls = agent.getTotalCalls() != null ? agent.getTotalCalls() : 0L;
+        long successCalls = agent.getSuccessCalls() != null ? agent.getSuccessCalls() : 0L;
+        Double averageResponseTime = agent.getAverageResponseTime();
+        LocalDateTime lastCallTime = agent.getLastCallTime();
+
+        PendingStats stats = pending.get(agent.getId());
+        if (stats != null) {
+            Snapshot snapshot = stats.peek();
+            totalCalls += snapshot.calls;
+            successCalls += snapshot.successCalls;
+            if (snapshot.samples > 0) {
+                averageResponseTime = averageResponseTime == null ? snapshot.mean()
+                        : averageResponseTime * Math.pow(RESPONSE_TIME_DECAY, snapshot.samples)
+                          + snapshot.mean() * (1 - Math.pow(RESPONSE_TIME_DECAY, snapshot.samples));
+            }
+            LocalDateTime pendingLastCall = snapshot.lastCallTime();
+            if (pendingLastCall != null && (lastCallTime == null || pendingLastCall.isAfter(lastCallTime))) {
+                lastCallTime = pendingLastCall;
+            }
+        }
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("agentId", agent.getId());
+        result.put("name", agent.getName());
+        result.put("totalCalls", totalCalls);
+        result.put("successCalls", successCalls);
+        result.put("successRate", totalCalls == 0 ? 0.0 : (double) successCalls / totalCalls * 100);
+        result.put("averageResponseTime", averageResponseTime);
+        result.put("lastCallTime", lastCallTime);
+        return result;
+    }
+
+    /**
+     * 所有智能体尚未写入的调用次数
+     */
+    public long getPendingCalls() {
+        return pending.values().stream().mapToLong(stats -> stats.calls.sum()).sum();
+    }
+
+    private static class PendingStats {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder successCalls = new LongAdder();
+        private final LongAdder responseTimeSamples = new LongAdder();
+        private final LongAdder responseTimeSum = new LongAdder();
+        private final LongAccumulator lastCallMillis = new LongAccumulator(Long::max, 0L);
+
+        Snapshot drain() {
+            return new Snapshot(calls.sumThenReset(), successCalls.sumThenReset(),
+                    responseTimeSamples.sumThenReset(), responseTimeSum.sumThenReset(), lastCallMillis.get());
+        }
+
+        Snapshot peek() {
+            return new Snapshot(calls.sum(), successCalls.sum(),
+                    responseTimeSamples.sum(), responseTimeSum.sum(), lastCallMillis.get());
+        }
+
+        void restore(Snapshot snapshot) {
+            calls.add(snapshot.calls);
+            successCalls.add(snapshot.successCalls);
+            responseTimeSamples.add(snapshot.samples);
+            responseTimeSum.add(snapshot.responseTimeSum);
+        }
+    }
+
+    private static class Snapshot {
+        private final long calls;
+        private final long successCalls;
+        private final long samples;
+        private final long responseTimeSum;
+        private final long lastCallMillis;
+
+        Snapshot(long calls, long successCalls, long samples, long responseTimeSum, long lastCallMillis) {
+            this.calls = calls;
+            this.successCalls = successCalls;
+            this.samples = samples;
+            this.responseTimeSum = responseTimeSum;
+            this.lastCallMillis = lastCallMillis;
+        }
+
+        double mean() {
+            return samples == 0 ? 0.0 : (double) responseTimeSum / samples;
+        }
+
+        LocalDateTime lastCallTime() {
+            return lastCallMillis == 0 ? null
+                    : LocalDateTime.ofInstant(Instant.ofEpochMilli(lastCallMillis), ZoneId.systemDefault());
+        }
+    }
+}
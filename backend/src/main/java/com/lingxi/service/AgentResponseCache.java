@@ -0,0 +1,387 @@
+package com.lingxi.service;
+
+import com.lingxi.dto.ChatTurn;
+import com.lingxi.entity.Agent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 智能体回复缓存（按智能体开启）
+ * 键为规范化后的问题加历史对话指纹，每个智能体一个带TTL的LRU缓存。
+ * 第一层精确匹配；第二层可选相似匹配：问题的字符二元组哈希向量余弦相似度达到阈值、历史指纹相同，
+ * 且数字、运算符和否定词序列完全一致才命中（字符向量无法区分“1+1”与“1+2”、“是”与“不是”）。
+ * 智能体config：responseCache=true 开启，responseCacheTtlMs 覆盖TTL，responseCacheSimilarity（如0.92）开启相似匹配
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class AgentResponseCache {
+
+    public static final String CONFIG_ENABLED = "responseCache";
+    public static final String CONFIG_TTL = "responseCacheTtlMs";
+    public static final String CONFIG_SIMILARITY = "responseCacheSimilarity";
+
+    private static final int VECTOR_DIMENSION = 256;
+
+    // 相似匹配时必须完全一致的运算符、中文否定字和英文否定词
+    private static final String OPERATOR_CHARS = "+-*/=<>%^×÷＋－＝≠≤≥";
+    private static final String NEGATION_CHARS = "不没无非别未否勿莫";
+    private static final Set<String> NEGATION_WORDS = Set.of("not", "no", "never", "none", "nothing", "without", "neither", "nor");
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${app.chat.response-cache.max-entries:1000}")
+    private int maxEntriesPerAgent;
+
+    @Value("${app.chat.response-cache.ttl:86400000}")
+    private long defaultTtlMs;
+
+    // 智能体ID -> 该智能体的回复缓存
+    private final ConcurrentHashMap<Long, AgentEntries> caches = new ConcurrentHashMap<>();
+    private final Map<String, Counter> lookupCounters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("agent.response.cache.entries", caches, this::countEntries)
+                .description("智能体回复缓存条目数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 生成缓存键，智能体未开启缓存时返回null
+     */
+    public Key keyFor(Agent agent, String prompt, List<ChatTurn> history) {
+        Map<String, String> config = agent.getConfig();
+        if (config == null || !"true".equalsIgnoreCase(config.get(CONFIG_ENABLED)) || prompt == null) {
+            return null;
+        }
+        String normalized = normalize(prompt);
+        if (normalized.isEmpty()) {
+            return null;
+        }
+        return new Key(agent.getId(), agentTag(agent), normalized, historyFingerprint(history),
+                parseLong(config.get(CONFIG_TTL), defaultTtlMs), parseDouble(config.get(CONFIG_SIMILARITY)));
+    }
+
+    /**
+     * 查询缓存：先精确匹配，再按配置进行相似匹配
+     */
+    public Optional<String> get(Key key) {
+        if (key == null) {
+            return Optional.empty();
+        }
+        AgentEntries entries = caches.get(key.agentId);
+        if (entries != null) {
+            long now = System.currentTimeMillis();
+            synchronized (entries) {
+                Entry exact = entries.get(key.exactKey);
+                if (exact != null && exact.expiresAt > now) {
+                    lookupCounter(key.agentTag, "hit_exact").increment();
+                    return Optional.of(exact.response);
+                }
+                if (key.similarity > 0) {
+                    float[] vector = key.vector();
+                    Entry best = null;
+                    double bestScore = key.similarity;
+                    for (Entry candidate : entries.values()) {
+                        if (candidate.expiresAt <= now || !candidate.historyFingerprint.equals(key.historyFingerprint)
+                                || !candidate.guard.equals(key.guard())) {
+                            continue;
+                        }
+                        double score = dot(vector, candidate.vector);
+                        if (score >= bestScore) {
+                            best = candidate;
+                            bestScore = score;
+                        }
+                    }
+                    if (best != null) {
+                        lookupCounter(key.agentTag, "hit_similar").increment();
+                        return Optional.of(best.response);
+                    }
+                }
+            }
+        }
+        lookupCounter(key.agentTag, "miss").increment();
+        return Optional.empty();
+    }
+
+    /**
+     * 写入成功的回复
+     */
+    public void put(Key key, String response) {
+        if (key == null || response == null || response.isEmpty()) {
+            return;
+        }
+        AgentEntries entries = caches.computeIfAbsent(key.agentId, id -> new AgentEntries(maxEntriesPerAgent));
+        Entry entry = new Entry(response, key.historyFingerprint, key.vector(), key.guard(),
+                System.currentTimeMillis() + key.ttlMs);
+        synchronized (entries) {
+            entries.put(key.exactKey, entry);
+        }
+    }
+
+    /**
+     * 清除某个智能体的缓存
+     */
+    public void evict(Long agentId) {
+        caches.remove(agentId);
+    }
+
+    /**
+     * 清理过期条目
+     */
+    @Scheduled(fixedRate = 300000) // 每5分钟执行一次
+    public void cleanupExpiredEntries() {
+        long now = System.currentTimeMillis();
+        caches.values().forEach(entries -> {
+            synchronized (entries) {
+                entries.values().removeIf(entry -> entry.expiresAt <= now);
+            }
+        });
+        caches.values().removeIf(entries -> {
+            synchronized (entries) {
+                return entries.isEmpty();
+            }
+        });
+    }
+
+    private double countEntries(Map<Long, AgentEntries> all) {
+        long total = 0;
+        for (AgentEntries entries : all.values()) {
+            synchronized (entries) {
+                total += entries.size();
+            }
+        }
+        return total;
+    }
+
+    private Counter lookupCounter(String agentTag, String result) {
+        return lookupCounters.computeIfAbsent(agentTag + "|" + result, k -> Counter.builder("agent.response.cache.lookups")
+                .description("智能体回复缓存查询次数")
+                .tag("agent", agentTag)
+                .tag("result", result)
+                .register(meterRegistry));
+    }
+
+    /**
+     * 规范化问题：去除首尾空白和结尾标点，合并连续空白，英文转小写
+     */
+    static String normalize(String prompt) {
+        StringBuilder sb = new StringBuilder(prompt.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < prompt.length(); i++) {
+            char c = prompt.charAt(i);
+            if (Character.isWhitespace(c)) {
+                pendingSpace = sb.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                sb.append(' ');
+                pendingSpace = false;
+            }
+            sb.append(Character.toLowerCase(c));
+        }
+        int end = sb.length();
+        while (end > 0 && "?？!！.。~～".indexOf(sb.charAt(end - 1)) >= 0) {
+            end--;
+        }
+        sb.setLength(end);
+        return sb.toString();
+    }
+
+    private static String historyFingerprint(List<ChatTurn> history) {
+        if (history == null || history.isEmpty()) {
+            return "";
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (ChatTurn turn : history) {
+                digest.update(String.valueOf(turn.getMessageType()).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+                digest.update(String.valueOf(turn.getContent()).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return Base64.getEncoder().encodeToString(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * 字符二元组哈希向量（L2归一化），单字符文本使用一元组
+     */
+    private static float[] vectorize(String text) {
+        float[] vector = new float[VECTOR_DIMENSION];
+        if (text.length() == 1) {
+            vector[text.charAt(0) % VECTOR_DIMENSION] = 1;
+            return vector;
+        }
+        for (int i = 0; i + 1 < text.length(); i++) {
+            int hash = text.charAt(i) * 31 + text.charAt(i + 1);
+            vector[Math.floorMod(hash, VECTOR_DIMENSION)] += 1;
+        }
+        double norm = 0;
+        for (float value : vector) {
+            norm += value * value;
+        }
+        norm = Math.sqrt(norm);
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] /= norm;
+        }
+        return vector;
+    }
+
+    /**
+     * 相似匹配时必须完全一致的部分：按顺序提取数字、运算符和否定词
+     */
+    static String guardTokens(String text) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                int start = i;
+                while (i < text.length() && ((text.charAt(i) >= 'a' && text.charAt(i) <= 'z') || text.charAt(i) == '\'')) {
+                    i++;
+                }
+                String word = text.substring(start, i);
+                if (NEGATION_WORDS.contains(word) || word.endsWith("n't")) {
+                    sb.append('!');
+                }
+                continue;
+            }
+            if (Character.isDigit(c) || OPERATOR_CHARS.indexOf(c) >= 0) {
+                sb.append(c);
+            } else if (NEGATION_CHARS.indexOf(c) >= 0) {
+                sb.append('!');
+            } else if (sb.length() > 0 && sb.charAt(sb.length() - 1) != ' ') {
+                // 分隔相邻的数字，避免“1 2”与“12”相同
+                sb.append(' ');
+            }
+            i++;
+        }
+        return sb.toString().trim();
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    private static String agentTag(Agent agent) {
+        return agent.getName() != null ? agent.getName() : String.valueOf(agent.getId());
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        try {
+            return value != null ? Long.parseLong(value.trim()) : defaultValue;
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    private static double parseDouble(String value) {
+        try {
+            return value != null ? Double.parseDouble(value.trim()) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * 缓存键
+     */
+    public static class Key {
+        private final Long agentId;
+        private final String agentTag;
+        private final String normalizedPrompt;
+        private final String historyFingerprint;
+        private final String exactKey;
+        private final long ttlMs;
+        private final double similarity;
+        private volatile float[] vector;
+        private volatile String guard;
+
+        Key(Long agentId, String agentTag, String normalizedPrompt, String historyFingerprint, long ttlMs, double similarity) {
+            this.agentId = agentId;
+            this.agentTag = agentTag;
+            this.normalizedPrompt = normalizedPrompt;
+            this.historyFingerprint = historyFingerprint;
+            this.exactKey = historyFingerprint + "|" + normalizedPrompt;
+            this.ttlMs = ttlMs;
+            this.similarity = similarity;
+        }
+
+        float[] vector() {
+            float[] result = vector;
+            if (result == null) {
+                result = vectorize(normalizedPrompt);
+                vector = result;
+            }
+            return result;
+        }
+
+        String guard() {
+            String result = guard;
+            if (result == null) {
+                result = guardTokens(normalizedPrompt);
+                guard = result;
+            }
+            return result;
+        }
+    }
+
+    private static class Entry {
+        private final String response;
+        private final String historyFingerprint;
+        private final float[] vector;
+        private final String guard;
+        private final long expiresAt;
+
+        Entry(String response, String historyFingerprint, float[] vector, String guard, long expiresAt) {
+            this.response = response;
+            this.historyFingerprint = historyFingerprint;
+            this.vector = vector;
+            this.guard = guard;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * 单个智能体的LRU缓存（访问顺序），调用方负责同步
+     */
+    private static class AgentEntries extends LinkedHashMap<String, Entry> {
+        private final int maxEntries;
+
+        AgentEntries(int maxEntries) {
+            super(16, 0.75f, true);
+            this.maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > maxEntries;
+        }
+    }
+}
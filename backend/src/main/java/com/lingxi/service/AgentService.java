@@ -15,7 +15,9 @@ import org.springframework.transaction.annotation.Transactional;
 
 import java.time.LocalDateTime;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 /**
  * 智能体管理服务
@@ -28,6 +30,9 @@ public class AgentService {
     private final AgentRepository agentRepository;
     private final UserRepository userRepository;
     private final ChatHistoryRepository chatHistoryRepository;
+    private final AgentCallStatsService agentCallStatsService;
+    private final AgentCacheService agentCacheService;
+    private final AgentResponseCache agentResponseCache;
 
     /**
      * 创建智能体
@@ -59,7 +64,9 @@ public class AgentService {
         agent.setCreatedAt(LocalDateTime.now());
         agent.setUpdatedAt(LocalDateTime.now());
         
-        return agentRepository.save(agent);
+        Agent savedAgent = agentRepository.save(agent);
+        agentCacheService.invalidate();
+        return savedAgent;
     }
     
     /**
@@ -107,6 +114,8 @@ public class AgentService {
         
         Agent savedAgent = agentRepository.save(existingAgent);
         Hibernate.initialize(savedAgent.getCreator()); // 初始化懒加载的关联
+        agentCacheService.invalidate();
+        agentResponseCache.evict(agentId); // 配置变更后旧回复不再适用
         return savedAgent;
     }
     
@@ -141,7 +150,10 @@ public class AgentService {
             agent.setEnabled(false);
         }
         
-        return agentRepository.save(agent);
+        Agent savedAgent = agentRepository.save(agent);
+        agentCacheService.invalidate();
+        agentResponseCache.evict(agentId);
+        return savedAgent;
     }
     
     /**
@@ -170,7 +182,10 @@ public class AgentService {
         agent.setEnabled(enabled);
         agent.setUpdatedAt(LocalDateTime.now());
         
-        return agentRepository.save(agent);
+        Agent savedAgent = agentRepository.save(agent);
+        agentCacheService.invalidate();
+        agentResponseCache.evict(agentId);
+        return savedAgent;
     }
     
     /**
@@ -195,27 +210,29 @@ public class AgentService {
         chatHistoryRepository.deleteChatHistoryByAgentId(agentId);
         
         agentRepository.delete(agent);
+        agentCacheService.invalidate();
+        agentResponseCache.evict(agentId);
     }
     
     /**
      * 获取智能体详情
      */
     public Optional<Agent> getAgentById(Long agentId) {
-        return agentRepository.findById(agentId);
+        return agentCacheService.findById(agentId);
     }
     
     /**
      * 根据名称获取智能体
      */
     public Optional<Agent> getAgentByName(String name) {
-        return agentRepository.findByName(name);
+        return agentCacheService.findByName(name);
     }
 
     /**
      * 获取所有已批准的智能体（分页）
      */
     public Page<Agent> getApprovedAgents(Pageable pageable) {
-        return agentRepository.findApprovedAgents(pageable);
+        return agentCacheService.getApprovedAgents(pageable);
     }
 
     
@@ -223,7 +240,7 @@ public class AgentService {
      * 获取所有活跃的智能体
      */
     public List<Agent> getActiveAgents() {
-        return agentRepository.findActiveAgents();
+        return agentCacheService.getActiveAgents();
     }
     
     /**
@@ -257,31 +274,10 @@ public class AgentService {
 
     
     /**
-     * 记录智能体调用
+     * 记录智能体调用（内存累加，定时批量写入）
      */
-    @Transactional
     public void recordAgentCall(Long agentId, Long responseTime, boolean success) {
-        Agent agent = agentRepository.findById(agentId)
-                .orElseThrow(() -> new RuntimeException("智能体不存在"));
-        
-        // 更新调用统计
-        agent.setTotalCalls(agent.getTotalCalls() + 1);
-        
-        if (success) {
-            agent.setSuccessCalls(agent.getSuccessCalls() + 1);
-        }
-        
-        // 更新平均响应时间
-        if (responseTime != null && responseTime > 0) {
-            agent.updateResponseTime(responseTime);
-        }
-        
-        // 更新最后调用时间
-        agent.setLastCallTime(LocalDateTime.now());
-        
-        agent.setUpdatedAt(LocalDateTime.now());
-        
-        agentRepository.save(agent);
+        agentCallStatsService.record(agentId, responseTime, success);
     }
     
     /**
@@ -330,6 +326,15 @@ public class AgentService {
         return agentRepository.countAgentsByType();
     }
     
+    /**
+     * 获取各智能体调用统计（包含尚未写入数据库的增量）
+     */
+    public List<Map<String, Object>> getAgentCallStats() {
+        return agentRepository.findAllByOrderByTotalCallsDesc().stream()
+                .map(agentCallStatsService::getStats)
+                .collect(Collectors.toList());
+    }
+    
     /**
      * 检查智能体健康状态
      */
@@ -30,6 +30,7 @@ public class AgentSubmissionService {
     private final AgentService agentService;
     private final UserRepository userRepository;
     private final AgentRepository agentRepository;
+    private final AgentCacheService agentCacheService;
 
     /**
      * 提交智能体申请
@@ -146,7 +147,9 @@ public class AgentSubmissionService {
         agent.setApprovalNotes(submission.getReviewNotes());
         agent.setEnabled(true);
         
-        return agentRepository.save(agent);
+        Agent savedAgent = agentRepository.save(agent);
+        agentCacheService.invalidate();
+        return savedAgent;
     }
 
     /**
@@ -27,6 +27,7 @@ public class AuthService {
     private final UserRepository userRepository;
     private final PasswordEncoder passwordEncoder;
     private final JwtUtil jwtUtil;
+    private final TokenRevocationService tokenRevocationService;
 
     /**
      * 用户注册
@@ -138,8 +139,8 @@ public class AuthService {
      */
     public void logout(String token) {
         try {
-            // 将token加入黑名单（这里简化处理，实际项目中可能需要Redis等缓存）
-            // TODO: 实现token黑名单机制
+            // 将token加入吊销列表，有效期至token过期
+            tokenRevocationService.revoke(token);
             log.info("User logged out, token invalidated");
         } catch (Exception e) {
             log.error("Logout failed", e);
@@ -0,0 +1,286 @@
+package com.lingxi.service;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lingxi.entity.ChatHistory;
+import com.lingxi.repository.ChatHistoryRepository;
+import jakarta.annotation.PreDestroy;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.dao.RecoverableDataAccessException;
+import org.springframework.dao.TransientDataAccessException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.CannotCreateTransactionException;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * 聊天记录异步写入服务（write-behind）
+ * 开启app.chat.write-behind.enabled后，智能体回复的最终状态更新先以字段快照进入内存队列，
+ * 由定时任务按批次在单个事务中写入，流式回复完成不再等待数据库提交。
+ * 队列中只有结果字段（内容、状态、耗时、错误信息），一个批次用同一条参数化UPDATE经JdbcTemplate.batchUpdate
+ * 作为一个JDBC批次发送，按ID更新，不合并实体，不会覆盖评分等并发修改。
+ * 数据库不可用时批次追加到本地JSONL文件，恢复后重放；批次因个别记录失败时逐条重试，
+ * 仍失败的记录移入死信文件，不阻塞其他记录。
+ *
+ * 新记录（无ID）的INSERT始终同步执行：其ID需要立即返回给客户端并用于评分、续传和回复链
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ChatHistoryWriteBehindService {
+
+    private static final String UPDATE_RESULT_SQL =
+            "UPDATE chat_history SET content = ?, status = ?, response_time_ms = ?, error_message = ? WHERE id = ?";
+
+    private final ChatHistoryRepository chatHistoryRepository;
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ObjectMapper objectMapper;
+
+    @Value("${app.chat.write-behind.enabled:false}")
+    private boolean enabled;
+
+    @Value("${app.chat.write-behind.batch-size:20}")
+    private int batchSize;
+
+    @Value("${app.chat.write-behind.spill-file:data/chat-write-behind.jsonl}")
+    private String spillFile;
+
+    @Value("${app.chat.write-behind.dead-letter-file:data/chat-write-behind.dead.jsonl}")
+    private String deadLetterFile;
+
+    private final BlockingQueue<ResultWrite> queue = new LinkedBlockingQueue<>(10000);
+
+    /**
+     * 保存聊天记录：新记录、未开启write-behind或队列已满时同步保存，否则排队更新结果字段
+     */
+    public ChatHistory save(ChatHistory chatHistory) {
+        if (!enabled || chatHistory.getId() == null || !queue.offer(ResultWrite.from(chatHistory))) {
+            return chatHistoryRepository.save(chatHistory);
+        }
+        return chatHistory;
+    }
+
+    /**
+     * 待写入记录数
+     */
+    public int getPendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * 定时批量写入
+     */
+    @Scheduled(fixedDelayString = "${app.chat.write-behind.flush-interval:500}")
+    public void flush() {
+        while (!queue.isEmpty()) {
+            List<ResultWrite> batch = new ArrayList<>(batchSize);
+            queue.drainTo(batch, batchSize);
+            if (batch.isEmpty()) {
+                return;
+            }
+            List<ResultWrite> unwritten = writeBatch(batch);
+            if (!unwritten.isEmpty()) {
+                log.error("Database unavailable, spilling {} chat records to {}", unwritten.size(), spillFile);
+                spill(unwritten);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 重放本地溢出文件
+     */
+    @Scheduled(fixedDelayString = "${app.chat.write-behind.replay-interval:60000}")
+    public void replaySpill() {
+        Path path = Paths.get(spillFile);
+        if (!Files.exists(path)) {
+            return;
+        }
+
+        Path replaying = Paths.get(spillFile + ".replaying");
+        List<ResultWrite> writes = new ArrayList<>();
+        try {
+            synchronized (this) {
+                Files.move(path, replaying, StandardCopyOption.REPLACE_EXISTING);
+            }
+            for (String line : Files.readAllLines(replaying, StandardCharsets.UTF_8)) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    writes.add(objectMapper.readValue(line, ResultWrite.class));
+                } catch (JsonProcessingException e) {
+                    log.error("Skipping malformed spilled chat record: {}", line, e);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to read write-behind spill file {}", spillFile, e);
+            return;
+        }
+
+        for (int i = 0; i < writes.size(); i += batchSize) {
+            List<ResultWrite> batch = writes.subList(i, Math.min(i + batchSize, writes.size()));
+            List<ResultWrite> unwritten = writeBatch(batch);
+            if (!unwritten.isEmpty()) {
+                // 只放回未写入的部分，已写入和已移入死信的记录不再重放
+                int remainingFrom = i + batch.size() - unwritten.size();
+                log.warn("Database unavailable while replaying spilled chat records, {} left for retry",
+                        writes.size() - remainingFrom);
+                restoreSpill(replaying, writes.subList(remainingFrom, writes.size()));
+                return;
+            }
+        }
+        try {
+            Files.deleteIfExists(replaying);
+        } catch (IOException e) {
+            log.error("Failed to delete replayed spill file {}", replaying, e);
+        }
+        log.info("Replayed {} spilled chat records", writes.size());
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (enabled) {
+            flush();
+        }
+    }
+
+    /**
+     * 在单个事务中写入一个批次；批次失败而数据库可用时逐条重试，仍失败的记录移入死信文件。
+     * 返回因数据库不可用未写入的记录（从第一条未写入的记录到批次末尾）
+     */
+    private List<ResultWrite> writeBatch(List<ResultWrite> batch) {
+        try {
+            transactionTemplate.executeWithoutResult(status -> apply(batch));
+            return List.of();
+        } catch (Exception e) {
+            if (isDatabaseUnavailable(e)) {
+                return batch;
+            }
+            log.warn("Write-behind batch of {} chat records failed, retrying row by row: {}", batch.size(), e.getMessage());
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            ResultWrite write = batch.get(i);
+            try {
+                transactionTemplate.executeWithoutResult(status -> apply(List.of(write)));
+            } catch (Exception e) {
+                if (isDatabaseUnavailable(e)) {
+                    return batch.subList(i, batch.size());
+                }
+                log.error("Chat record {} cannot be written, moving to {}", write.getId(), deadLetterFile, e);
+                appendLines(Paths.get(deadLetterFile), List.of(write));
+            }
+        }
+        return List.of();
+    }
+
+    /**
+     * 连接类错误视为数据库不可用（整体溢出稍后重试），其余错误视为记录本身有问题
+     */
+    private static boolean isDatabaseUnavailable(Exception e) {
+        return e instanceof TransientDataAccessException
+                || e instanceof RecoverableDataAccessException
+                || e instanceof DataAccessResourceFailureException
+                || e instanceof CannotCreateTransactionException;
+    }
+
+    /**
+     * 以一个JDBC批次写入结果字段
+     */
+    private void apply(List<ResultWrite> writes) {
+        List<ResultWrite> updates = writes.stream().filter(write -> write.getId() != null).toList();
+        if (updates.isEmpty()) {
+            return;
+        }
+        jdbcTemplate.batchUpdate(UPDATE_RESULT_SQL, updates, updates.size(), (ps, write) -> {
+            ps.setString(1, write.getContent());
+            ps.setString(2, write.getStatus() != null ? write.getStatus().name() : null);
+            ps.setObject(3, write.getResponseTimeMs(), Types.BIGINT);
+            ps.setString(4, write.getErrorMessage());
+            ps.setLong(5, write.getId());
+        });
+    }
+
+    private synchronized void spill(List<ResultWrite> batch) {
+        appendLines(Paths.get(spillFile), batch);
+    }
+
+    private synchronized void appendLines(Path path, List<ResultWrite> writes) {
+        try {
+            if (path.getParent() != null) {
+                Files.createDirectories(path.getParent());
+            }
+            try (BufferedWriter writer = Files.newBufferedWriter(path, StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+                for (ResultWrite write : writes) {
+                    writer.write(objectMapper.writeValueAsString(write));
+                    writer.newLine();
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to write {} chat records to {}, records lost", writes.size(), path, e);
+        }
+    }
+
+    private synchronized void restoreSpill(Path replaying, List<ResultWrite> remaining) {
+        try {
+            Path path = Paths.get(spillFile);
+            List<String> lines = new ArrayList<>(remaining.size());
+            for (ResultWrite write : remaining) {
+                lines.add(objectMapper.writeValueAsString(write));
+            }
+            if (Files.exists(path)) {
+                // 重放期间又有新的溢出记录，放在未写入的记录之后，保持更新顺序
+                lines.addAll(Files.readAllLines(path, StandardCharsets.UTF_8));
+            }
+            Files.write(replaying, lines, StandardCharsets.UTF_8);
+            Files.move(replaying, path, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            log.error("Failed to restore write-behind spill file {}", spillFile, e);
+        }
+    }
+
+    /**
+     * 待写入的回复结果字段（入队时的快照，同时作为溢出文件中的一行）
+     */
+    @Data
+    @NoArgsConstructor
+    public static class ResultWrite {
+        private Long id;
+        private String content;
+        private ChatHistory.MessageStatus status;
+        private Long responseTimeMs;
+        private String errorMessage;
+
+        static ResultWrite from(ChatHistory chatHistory) {
+            ResultWrite write = new ResultWrite();
+            write.setId(chatHistory.getId());
+            write.setContent(chatHistory.getContent());
+            write.setStatus(chatHistory.getStatus());
+            write.setResponseTimeMs(chatHistory.getResponseTimeMs());
+            write.setErrorMessage(chatHistory.getErrorMessage());
+            return write;
+        }
+    }
+}
@@ -1,31 +1,42 @@
 package com.lingxi.service;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lingxi.dto.AgentReplyEvent;
+import com.lingxi.dto.AgentStreamEvent;
+import com.lingxi.dto.ChatTurn;
 import com.lingxi.entity.Agent;
 import com.lingxi.entity.ChatHistory;
 import com.lingxi.entity.User;
-import com.lingxi.repository.AgentRepository;
+import com.lingxi.exception.BusinessException;
+import com.lingxi.exception.RateLimitExceededException;
 import com.lingxi.repository.ChatHistoryRepository;
 import com.lingxi.repository.UserRepository;
+import com.lingxi.util.JiutianStreamFrameDecoder;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.data.domain.Pageable;
-import org.springframework.http.*;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Consumer;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 
 /**
@@ -37,12 +48,21 @@ import java.nio.charset.StandardCharsets;
 public class ChatService {
 
     private final ChatHistoryRepository chatHistoryRepository;
-    private final AgentRepository agentRepository;
     private final UserRepository userRepository;
     private final AgentService agentService;
-    private final RestTemplate restTemplate;
     private final ObjectMapper objectMapper;
     private final JiutianTokenService jiutianTokenService;
+    private final JiutianHttpClientService jiutianHttpClient;
+    private final JiutianStreamFrameDecoder streamFrameDecoder;
+    private final SessionSequenceService sessionSequenceService;
+    private final ConversationContextCache conversationContextCache;
+    private final ChatHistoryWriteBehindService chatHistoryWriter;
+    private final JiutianCallMetrics callMetrics;
+    private final RateLimiterService rateLimiterService;
+    private final ApplicationEventPublisher eventPublisher;
+    private final AgentCacheService agentCacheService;
+    private final AgentResponseCache responseCache;
+    private final InflightRequestCoalescer requestCoalescer;
 
     @Value("${app.jiutian.base-url}")
     private String jiutianApiUrl;
@@ -56,8 +76,31 @@ public class ChatService {
     @Value("${app.chat.session-timeout:3600}")
     private int sessionTimeoutSeconds;
 
-    // @智能体名 的正则表达式
-    private static final Pattern AGENT_MENTION_PATTERN = Pattern.compile("@([\u4e00-\u9fa5a-zA-Z0-9_-]+)");
+    @Value("${app.security.rate-limit.enabled:false}")
+    private boolean rateLimitEnabled;
+    
+    // 流式回复总时长上限（毫秒），可在智能体config中用streamTimeoutMs覆盖
+    @Value("${app.chat.stream.timeout:300000}")
+    private long defaultStreamTimeoutMs;
+    
+    // @提及的智能体并发调用，整条消息的回复截止时间（毫秒）
+    @Value("${app.chat.mention.deadline:120000}")
+    private long mentionDeadlineMs;
+
+    @Value("${app.security.rate-limit.agent-requests-per-minute:600}")
+    private long agentRequestsPerMinute;
+
+    // 流式响应结束标记
+    private static final String STREAM_DONE = "[DONE]";
+    
+    // 缓存命中时合成流的片段长度（字符）
+    private static final int CACHED_REPLAY_CHUNK_SIZE = 32;
+
+    // 智能体config中覆盖每分钟请求上限的键
+    private static final String CONFIG_RATE_LIMIT_PER_MINUTE = "rateLimitPerMinute";
+    
+    // 智能体config中覆盖流式回复总时长上限的键
+    private static final String CONFIG_STREAM_TIMEOUT = "streamTimeoutMs";
 
     /**
      * 处理用户消息
@@ -86,13 +129,15 @@ public class ChatService {
         userMessage.setCreatedAt(LocalDateTime.now());
         
         userMessage = chatHistoryRepository.save(userMessage);
+        conversationContextCache.addUserTurn(userId, sessionId, ConversationContextCache.toTurn(userMessage));
         
         // 解析消息中的@智能体
-        List<String> mentionedAgents = extractMentionedAgents(content);
+        List<Agent> mentionedAgents = agentCacheService.resolveMentions(content);
         
         if (!mentionedAgents.isEmpty()) {
-            // 异步处理智能体响应
-            processAgentResponses(userMessage, mentionedAgents);
+            // 事务提交后再异步处理智能体响应，上游调用期间不占用数据库事务
+            ChatHistory savedMessage = userMessage;
+            afterCommit(() -> processAgentResponses(savedMessage, mentionedAgents));
         }
         
         return userMessage;
@@ -100,108 +145,75 @@ public class ChatService {
     
     /**
      * 处理智能体响应
+     * 所有被@的智能体并发调用，共用同一截止时间；每个回复完成即保存并推送，互不等待
      */
-    private void processAgentResponses(ChatHistory userMessage, List<String> mentionedAgents) {
-        for (String agentName : mentionedAgents) {
-            try {
-                processAgentResponse(userMessage, agentName);
-            } catch (Exception e) {
-                log.error("Error processing agent response for agent: {}", agentName, e);
-                // 创建错误响应记录
-                createErrorResponse(userMessage, agentName, e.getMessage());
-            }
-        }
+    private void processAgentResponses(ChatHistory userMessage, List<Agent> mentionedAgents) {
+        Long userId = userMessage.getUser().getId();
+        Duration deadline = Duration.ofMillis(mentionDeadlineMs);
+        
+        Flux.fromIterable(mentionedAgents)
+                .flatMap(agent -> mentionedAgentReply(userMessage, agent, deadline))
+                .subscribe(
+                        reply -> eventPublisher.publishEvent(new AgentReplyEvent(userId, reply)),
+                        e -> log.error("Error dispatching mentioned agents for message: {}", userMessage.getId(), e));
+    }
+    
+    /**
+     * 单个被@智能体的回复，失败或超时时保存错误记录
+     */
+    private Mono<ChatHistory> mentionedAgentReply(ChatHistory userMessage, Agent agent, Duration deadline) {
+        String agentName = agent.getName();
+        return streamAgentResponseById(userMessage, agent.getId())
+                .filter(AgentStreamEvent::isComplete)
+                .next()
+                .map(AgentStreamEvent::getChatHistory)
+                .timeout(deadline)
+                .onErrorResume(e -> {
+                    log.error("Error processing agent response for agent: {}", agentName, e);
+                    String errorMessage = e instanceof TimeoutException ? "智能体回复超时" : e.getMessage();
+                    // 创建错误响应记录
+                    return Mono.fromCallable(() -> createErrorResponse(userMessage, agentName, errorMessage))
+                            .subscribeOn(Schedulers.boundedElastic());
+                });
     }
     
     /**
      * 根据智能体ID处理智能体响应
+     * 不在事务中执行：上游调用期间不占用数据库连接，各条记录单独保存
      */
-    @Transactional
     public ChatHistory processAgentResponseById(ChatHistory userMessage, Long agentId) {
         log.info("Processing agent response for agent ID: {} to message: {}", agentId, userMessage.getId());
         
         // 查找智能体
-        Optional<Agent> agentOpt = agentRepository.findById(agentId);
-        if (agentOpt.isEmpty()) {
-            throw new RuntimeException("智能体不存在: " + agentId);
-        }
-        
-        Agent agent = agentOpt.get();
-        
-        // 检查智能体状态
-        if (!agent.getStatus().equals(Agent.AgentStatus.APPROVED) || !agent.getEnabled()) {
-            throw new RuntimeException("智能体未启用或未审核通过: " + agent.getName());
-        }
+        Agent agent = findEnabledAgent(agentId);
         
         return processAgentResponseInternal(userMessage, agent);
     }
     
     /**
-     * 根据智能体ID处理智能体响应（支持流式回调）
+     * 根据智能体ID处理智能体响应（支持流式回调，同样不在事务中执行）
      */
-    @Transactional
     public ChatHistory processAgentResponseByIdWithCallback(ChatHistory userMessage, Long agentId, Consumer<String> chunkCallback) {
         log.info("Processing agent response with callback for agent ID: {} to message: {}", agentId, userMessage.getId());
         
         // 查找智能体
-        Optional<Agent> agentOpt = agentRepository.findById(agentId);
-        if (agentOpt.isEmpty()) {
-            throw new RuntimeException("智能体不存在: " + agentId);
-        }
-        
-        Agent agent = agentOpt.get();
-        
-        // 检查智能体状态
-        if (!agent.getStatus().equals(Agent.AgentStatus.APPROVED) || !agent.getEnabled()) {
-            throw new RuntimeException("智能体未启用或未审核通过: " + agent.getName());
-        }
+        Agent agent = findEnabledAgent(agentId);
         
         return processAgentResponseInternalWithCallback(userMessage, agent, chunkCallback);
     }
     
-    /**
-     * 处理单个智能体响应
-     */
-    @Transactional
-    public ChatHistory processAgentResponse(ChatHistory userMessage, String agentName) {
-        log.info("Processing agent response for agent: {} to message: {}", agentName, userMessage.getId());
-        
-        // 查找智能体
-        Optional<Agent> agentOpt = agentRepository.findByName(agentName);
-        if (agentOpt.isEmpty()) {
-            throw new RuntimeException("智能体不存在: " + agentName);
-        }
-        
-        Agent agent = agentOpt.get();
-        
-        // 检查智能体状态
-        if (!agent.getStatus().equals(Agent.AgentStatus.APPROVED) || !agent.getEnabled()) {
-            throw new RuntimeException("智能体未启用或未审核通过: " + agentName);
-        }
-        
-        return processAgentResponseInternal(userMessage, agent);
-    }
-    
     /**
      * 内部方法：处理智能体响应的通用逻辑
      */
     private ChatHistory processAgentResponseInternal(ChatHistory userMessage, Agent agent) {
-        // 创建处理中的响应记录
-        ChatHistory agentResponse = new ChatHistory();
-        agentResponse.setUser(userMessage.getUser());
-        agentResponse.setAgent(agent);
-        agentResponse.setSessionId(userMessage.getSessionId());
-        agentResponse.setMessageType(ChatHistory.MessageType.AGENT);
-        agentResponse.setContent(userMessage.getContent());
-        agentResponse.setStatus(ChatHistory.MessageStatus.PENDING);
-        agentResponse.setParentMessageId(userMessage.getId());
-        agentResponse.setSequenceNumber(getNextSequenceNumber(userMessage.getSessionId()));
+        checkAgentRateLimit(agent);
         
-        agentResponse = chatHistoryRepository.save(agentResponse);
+        // 创建处理中的响应记录
+        ChatHistory agentResponse = createPendingResponse(userMessage, agent);
         
         try {
             // 获取历史对话
-            List<ChatHistory> history = getChatHistory(userMessage.getUserId(), userMessage.getSessionId(), agent.getId());
+            List<ChatTurn> history = getPromptHistory(userMessage, agent.getId());
             
             // 调用九天API
             long startTime = System.currentTimeMillis();
@@ -217,7 +229,7 @@ public class ChatService {
             
             // 记录智能体调用统计
             agentService.recordAgentCall(agent.getId(), responseTime, true);
-            return chatHistoryRepository.save(agentResponse);
+            return saveAgentReply(agentResponse);
 
         } catch (Exception e) {
             log.error("Error calling agent API: {}", agent.getName(), e);
@@ -226,7 +238,7 @@ public class ChatService {
             
             // 记录失败调用
             agentService.recordAgentCall(agent.getId(), null, false);
-            chatHistoryRepository.save(agentResponse); // 保存失败记录
+            chatHistoryWriter.save(agentResponse); // 保存失败记录
             throw e; // 重新抛出异常，由Controller处理
         }
     }
@@ -235,22 +247,14 @@ public class ChatService {
      * 内部方法：处理智能体响应的通用逻辑（支持流式回调）
      */
     private ChatHistory processAgentResponseInternalWithCallback(ChatHistory userMessage, Agent agent, Consumer<String> chunkCallback) {
-        // 创建处理中的响应记录
-        ChatHistory agentResponse = new ChatHistory();
-        agentResponse.setUser(userMessage.getUser());
-        agentResponse.setAgent(agent);
-        agentResponse.setSessionId(userMessage.getSessionId());
-        agentResponse.setMessageType(ChatHistory.MessageType.AGENT);
-        agentResponse.setContent(userMessage.getContent());
-        agentResponse.setStatus(ChatHistory.MessageStatus.PENDING);
-        agentResponse.setParentMessageId(userMessage.getId());
-        agentResponse.setSequenceNumber(getNextSequenceNumber(userMessage.getSessionId()));
+        checkAgentRateLimit(agent);
         
-        agentResponse = chatHistoryRepository.save(agentResponse);
+        // 创建处理中的响应记录
+        ChatHistory agentResponse = createPendingResponse(userMessage, agent);
         
         try {
             // 获取历史对话
-            List<ChatHistory> history = getChatHistory(userMessage.getUserId(), userMessage.getSessionId(), agent.getId());
+            List<ChatTurn> history = getPromptHistory(userMessage, agent.getId());
             
             // 调用九天API（流式）
             long startTime = System.currentTimeMillis();
@@ -264,7 +268,7 @@ public class ChatService {
             
             // 记录智能体调用统计
             agentService.recordAgentCall(agent.getId(), responseTime, true);
-            return chatHistoryRepository.save(agentResponse);
+            return saveAgentReply(agentResponse);
 
         } catch (Exception e) {
             log.error("Error calling agent API with callback: {}", agent.getName(), e);
@@ -273,15 +277,335 @@ public class ChatService {
             
             // 记录失败调用
             agentService.recordAgentCall(agent.getId(), null, false);
-            chatHistoryRepository.save(agentResponse); // 保存失败记录
+            chatHistoryWriter.save(agentResponse); // 保存失败记录
             throw e; // 重新抛出异常，由Controller处理
         }
     }
     
+    /**
+     * 根据智能体ID生成流式回复（非阻塞）
+     * 上游流由WebClient读取，JPA读写在boundedElastic上执行，回复期间不占用线程。
+     * 取消订阅会将处理中的记录连同已生成的内容标记为失败，共享同一上游的请求全部取消后中断上游读取
+     */
+    public Flux<AgentStreamEvent> streamAgentResponseById(ChatHistory userMessage, Long agentId) {
+        return Mono.fromCallable(() -> prepareAgentStream(userMessage, agentId))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMapMany(context -> context.cachedResponse != null
+                        ? replayCachedResponse(context)
+                        : streamFromUpstream(context));
+    }
+    
+    /**
+     * 回放缓存的回复（合成流）
+     */
+    private Flux<AgentStreamEvent> replayCachedResponse(AgentStreamContext context) {
+        long startTime = System.currentTimeMillis();
+        return Flux.fromIterable(splitCachedResponse(context.cachedResponse))
+                .map(AgentStreamEvent::chunk)
+                .concatWith(Mono.fromCallable(() -> completeAgentStream(
+                                context, context.cachedResponse, System.currentTimeMillis() - startTime))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .map(AgentStreamEvent::complete))
+                .onErrorResume(e -> Mono.fromRunnable(() -> failAgentStream(context, e))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .then(Mono.<AgentStreamEvent>error(e)))
+                .doOnCancel(() -> Mono.fromRunnable(() -> cancelAgentStream(context, context.cachedResponse))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .subscribe());
+    }
+    
+    /**
+     * 缓存的回复切分为片段回放
+     */
+    private List<String> splitCachedResponse(String response) {
+        List<String> chunks = new ArrayList<>();
+        for (int i = 0; i < response.length(); i += CACHED_REPLAY_CHUNK_SIZE) {
+            chunks.add(response.substring(i, Math.min(response.length(), i + CACHED_REPLAY_CHUNK_SIZE)));
+        }
+        return chunks;
+    }
+    
+    /**
+     * 从九天上游读取流式回复
+     * 相同的进行中请求共享一次上游调用（原始数据行），每个请求各自解析、计时、累计内容、保存记录和处理取消
+     */
+    private Flux<AgentStreamEvent> streamFromUpstream(AgentStreamContext context) {
+        StringBuilder fullResponse = new StringBuilder();
+        long startTime = System.currentTimeMillis();
+        JiutianCallMetrics.Call call = callMetrics.start(context.agent, context.endpoint, JiutianCallMetrics.MODE_REACTIVE);
+        // 总时长截止：cache使各元素共享同一个从首次订阅开始的计时
+        Mono<Long> deadline = Mono.delay(Duration.ofMillis(resolveStreamTimeout(context.agent))).cache();
+        String coalesceKey = requestCoalescer.keyFor(context.agent, context.endpoint, context.jsonRequest);
+
+        Flux<AgentStreamEvent> chunks = requestCoalescer
+                .share(context.agent, coalesceKey, () -> upstreamLines(context))
+                .<String>handle((line, sink) -> {
+                    call.connected();
+                    String jsonData = extractStreamPayload(line);
+                    if (STREAM_DONE.equals(jsonData)) {
+                        sink.complete();
+                        return;
+                    }
+                    if (jsonData == null) {
+                        return;
+                    }
+                    String content = streamFrameDecoder.decode(jsonData, fullResponse.length(), call::parseFailure);
+                    if (content != null && !content.isEmpty()) {
+                        call.chunk();
+                        fullResponse.append(content);
+                        sink.next(content);
+                    }
+                })
+                .timeout(deadline, content -> deadline)
+                .map(AgentStreamEvent::chunk)
+                .doOnComplete(call::success)
+                .doOnError(e -> call.failure())
+                .doOnCancel(call::cancelled)
+                .onErrorMap(e -> !(e instanceof BusinessException), e -> {
+                    log.error("调用九天API流式接口时发生错误: {}", e.getMessage());
+                    if (e instanceof TimeoutException) {
+                        return new RuntimeException("智能体回复超时，请稍后再试。", e);
+                    }
+                    return new RuntimeException("智能体暂时无法响应，请稍后再试。", e);
+                });
+
+        Mono<AgentStreamEvent> completion = Mono.fromCallable(() -> {
+                    String response = fullResponse.toString();
+                    ChatHistory saved = completeAgentStream(context, response, System.currentTimeMillis() - startTime);
+                    responseCache.put(context.cacheKey, response);
+                    return saved;
+                })
+                .subscribeOn(Schedulers.boundedElastic())
+                .map(AgentStreamEvent::complete);
+
+        return chunks.concatWith(completion)
+                .onErrorResume(e -> Mono.fromRunnable(() -> failAgentStream(context, e))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .then(Mono.<AgentStreamEvent>error(e)))
+                .doOnCancel(() -> Mono.fromRunnable(() -> cancelAgentStream(context, fullResponse.toString()))
+                        .subscribeOn(Schedulers.boundedElastic())
+                        .subscribe());
+    }
+    
+    /**
+     * 九天上游的原始数据行（订阅时发起调用，可被相同的进行中请求共享）
+     * 认证失败（响应头阶段，尚未产生内容）时刷新Token并重试一次
+     */
+    private Flux<String> upstreamLines(AgentStreamContext context) {
+        return jiutianHttpClient
+                .streamLines(context.endpoint, context.agent.getConfig(), context.jsonRequest, context.headers)
+                .onErrorResume(ChatService::isAuthenticationError, e -> {
+                    log.warn("检测到认证错误，尝试刷新Token并重试 for agent: {}", context.agent.getName());
+                    return Mono.fromCallable(() -> jiutianTokenService.refreshToken(context.agent.getApiKey()))
+                            .subscribeOn(Schedulers.boundedElastic())
+                            .doOnError(refreshException -> {
+                                callMetrics.authRetry(context.agent, context.endpoint, JiutianCallMetrics.MODE_REACTIVE, false);
+                                log.error("Token刷新失败 for agent: {}", context.agent.getName(), refreshException);
+                            })
+                            .flatMapMany(token -> {
+                                callMetrics.authRetry(context.agent, context.endpoint, JiutianCallMetrics.MODE_REACTIVE, true);
+                                Map<String, String> headers = new HashMap<>(context.headers);
+                                headers.put("Authorization", "Bearer " + token);
+                                return jiutianHttpClient.streamLines(context.endpoint, context.agent.getConfig(),
+                                        context.jsonRequest, headers);
+                            });
+                });
+    }
+    
+    /**
+     * 流式回复准备：校验智能体、保存处理中记录、构建请求（阻塞，需在boundedElastic上调用）
+     */
+    private AgentStreamContext prepareAgentStream(ChatHistory userMessage, Long agentId) throws Exception {
+        log.info("Streaming agent response for agent ID: {} to message: {}", agentId, userMessage.getId());
+        
+        Agent agent = findEnabledAgent(agentId);
+        checkAgentRateLimit(agent);
+        ChatHistory agentResponse = createPendingResponse(userMessage, agent);
+        
+        try {
+            List<ChatTurn> history = getPromptHistory(userMessage, agent.getId());
+            AgentResponseCache.Key cacheKey = responseCache.keyFor(agent, userMessage.getContent(), history);
+            String cachedResponse = responseCache.get(cacheKey).orElse(null);
+            if (cachedResponse != null) {
+                return new AgentStreamContext(agent, agentResponse, null, null, null, cacheKey, cachedResponse);
+            }
+            Map<String, Object> requestBody = buildStreamRequestBody(userMessage.getContent(), history);
+            
+            return new AgentStreamContext(agent, agentResponse, resolveStreamEndpoint(agent),
+                    objectMapper.writeValueAsString(requestBody), buildStreamHeaders(agent), cacheKey, null);
+        } catch (Exception e) {
+            // 处理中记录已保存，构建请求失败时标记为失败，避免遗留PENDING记录
+            log.error("Error preparing agent stream: {}", agent.getName(), e);
+            failAgentStream(new AgentStreamContext(agent, agentResponse, null, null, null, null, null), e);
+            throw e;
+        }
+    }
+    
+    /**
+     * 流式回复完成：保存完整回复并记录调用统计
+     */
+    private ChatHistory completeAgentStream(AgentStreamContext context, String response, long responseTime) {
+        if (response.isEmpty()) {
+            throw new RuntimeException("智能体响应为空");
+        }
+        if (!context.settled.compareAndSet(false, true)) {
+            throw new RuntimeException("智能体回复已取消");
+        }
+        
+        ChatHistory agentResponse = context.agentResponse;
+        agentResponse.setContent(response);
+        agentResponse.setStatus(ChatHistory.MessageStatus.SUCCESS);
+        agentResponse.setResponseTimeMs(responseTime);
+        
+        agentService.recordAgentCall(context.agent.getId(), responseTime, true);
+        return saveAgentReply(agentResponse);
+    }
+    
+    /**
+     * 流式回复失败：保存失败记录并记录失败调用
+     */
+    private void failAgentStream(AgentStreamContext context, Throwable error) {
+        if (!context.settled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            ChatHistory agentResponse = context.agentResponse;
+            agentResponse.setStatus(error.getCause() instanceof TimeoutException
+                    ? ChatHistory.MessageStatus.TIMEOUT : ChatHistory.MessageStatus.FAILED);
+            agentResponse.setErrorMessage(error.getMessage());
+            
+            agentService.recordAgentCall(context.agent.getId(), null, false);
+            chatHistoryWriter.save(agentResponse);
+        } catch (Exception e) {
+            log.error("Error saving failed stream response for agent: {}", context.agent.getName(), e);
+        }
+    }
+    
+    /**
+     * 流式回复被取消（客户端断开或@提及超时）：保存已生成的部分内容，记录标记为失败
+     */
+    private void cancelAgentStream(AgentStreamContext context, String partialResponse) {
+        if (!context.settled.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            log.info("Agent stream cancelled for agent: {}, message: {}", context.agent.getName(), context.agentResponse.getId());
+            ChatHistory agentResponse = context.agentResponse;
+            agentResponse.setContent(partialResponse);
+            agentResponse.setStatus(ChatHistory.MessageStatus.FAILED);
+            agentResponse.setErrorMessage("回复已取消（客户端断开或超时）");
+            chatHistoryWriter.save(agentResponse);
+        } catch (Exception e) {
+            log.error("Error saving cancelled stream response for agent: {}", context.agent.getName(), e);
+        }
+    }
+    
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+    
+    /**
+     * 流式回复总时长上限，智能体config中的streamTimeoutMs优先
+     */
+    private long resolveStreamTimeout(Agent agent) {
+        String override = agent.getConfig() != null ? agent.getConfig().get(CONFIG_STREAM_TIMEOUT) : null;
+        if (override != null) {
+            try {
+                long timeoutMs = Long.parseLong(override.trim());
+                if (timeoutMs > 0) {
+                    return timeoutMs;
+                }
+            } catch (NumberFormatException e) {
+                log.warn("Invalid {} for agent {}: {}", CONFIG_STREAM_TIMEOUT, agent.getName(), override);
+            }
+        }
+        return defaultStreamTimeoutMs;
+    }
+    
+    /**
+     * 智能体级限流：保护单个智能体的上游额度，可在config中用rateLimitPerMinute覆盖
+     */
+    private void checkAgentRateLimit(Agent agent) {
+        if (!rateLimitEnabled) {
+            return;
+        }
+        long limit = agentRequestsPerMinute;
+        String override = agent.getConfig() != null ? agent.getConfig().get(CONFIG_RATE_LIMIT_PER_MINUTE) : null;
+        if (override != null) {
+            try {
+                limit = Long.parseLong(override.trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid agent config {}={}, using default {}", CONFIG_RATE_LIMIT_PER_MINUTE, override, limit);
+            }
+        }
+        long waitMs = rateLimiterService.tryAcquire(RateLimiterService.SCOPE_AGENT, "agent:" + agent.getId(), limit, 60_000L);
+        if (waitMs > 0) {
+            log.warn("Agent {} rate limit exceeded, retry after {}ms", agent.getName(), waitMs);
+            throw new RateLimitExceededException("智能体请求过于频繁，请稍后再试。", waitMs);
+        }
+    }
+    
+    /**
+     * 查找已审核并启用的智能体
+     */
+    private Agent findEnabledAgent(Long agentId) {
+        Agent agent = agentCacheService.findById(agentId)
+                .orElseThrow(() -> new RuntimeException("智能体不存在: " + agentId));
+        
+        // 检查智能体状态
+        if (!agent.getStatus().equals(Agent.AgentStatus.APPROVED) || !agent.getEnabled()) {
+            throw new RuntimeException("智能体未启用或未审核通过: " + agent.getName());
+        }
+        return agent;
+    }
+    
+    /**
+     * 保存成功的智能体回复，并写入会话上下文缓存
+     */
+    private ChatHistory saveAgentReply(ChatHistory agentResponse) {
+        ChatHistory saved = chatHistoryWriter.save(agentResponse);
+        conversationContextCache.addAgentTurn(saved.getUserId(), saved.getSessionId(),
+                saved.getAgent().getId(), ConversationContextCache.toTurn(saved));
+        return saved;
+    }
+    
+    /**
+     * 创建处理中的智能体响应记录
+     */
+    private ChatHistory createPendingResponse(ChatHistory userMessage, Agent agent) {
+        ChatHistory agentResponse = new ChatHistory();
+        agentResponse.setUser(userMessage.getUser());
+        agentResponse.setAgent(agent);
+        agentResponse.setSessionId(userMessage.getSessionId());
+        agentResponse.setMessageType(ChatHistory.MessageType.AGENT);
+        agentResponse.setContent(userMessage.getContent());
+        agentResponse.setStatus(ChatHistory.MessageStatus.PENDING);
+        agentResponse.setParentMessageId(userMessage.getId());
+        agentResponse.setSequenceNumber(getNextSequenceNumber(userMessage.getSessionId()));
+        
+        return chatHistoryRepository.save(agentResponse);
+    }
+    
     /**
      * 调用九天API
      */
-    private String callJiutianAPI(Agent agent, String userMessage, List<ChatHistory> history) {
+    private String callJiutianAPI(Agent agent, String userMessage, List<ChatTurn> history) {
+        AgentResponseCache.Key cacheKey = responseCache.keyFor(agent, userMessage, history);
+        Optional<String> cached = responseCache.get(cacheKey);
+        if (cached.isPresent()) {
+            return cached.get();
+        }
+        
+        JiutianCallMetrics.Call call = null;
         try {
             // 构建九天平台请求体格式 - 使用prompt格式
             Map<String, Object> requestBody = new HashMap<>();
@@ -290,7 +614,7 @@ public class ChatService {
             StringBuilder promptBuilder = new StringBuilder();
             
             // 添加历史对话
-            for (ChatHistory chat : history) {
+            for (ChatTurn chat : history) {
                 if (chat.getMessageType() == ChatHistory.MessageType.USER) {
                     promptBuilder.append("用户: ").append(chat.getContent()).append("\n");
                 } else if (chat.getMessageType() == ChatHistory.MessageType.AGENT && chat.getContent() != null) {
@@ -308,10 +632,10 @@ public class ChatService {
             requestBody.put("stream", true); // 启用流式输出
 
             // 构建请求头
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            headers.set("Accept", "application/json");
-            headers.set("Accept-Charset", "UTF-8");
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Type", "application/json");
+            headers.put("Accept", "application/json");
+            headers.put("Accept-Charset", "UTF-8");
 
             // 验证九天平台认证信息
             if (agent.getAppId() == null || agent.getAppId().trim().isEmpty()) {
@@ -334,113 +658,132 @@ public class ChatService {
                 throw new RuntimeException("Authentication Token已过期，请重新生成");
             }
 
-            // 使用动态获取的token作为Bearer认证
-            headers.setBearerAuth(validToken);
-
             // 添加API Key到请求头（九天平台可能需要）
-            headers.set("X-API-Key", agent.getApiKey());
-            headers.set("Authorization", "Bearer " + validToken);
+            headers.put("X-API-Key", agent.getApiKey());
+            headers.put("Authorization", "Bearer " + validToken);
 
-            HttpEntity<Map<String, Object>> request = new HttpEntity<>(requestBody, headers);
+            String jsonRequest = objectMapper.writeValueAsString(requestBody);
 
-            // 发送请求到九天平台 - 使用正确的API端点
+            // 发送请求到九天平台 - 使用正确的API端点（复用端点连接池）
             String endpoint = agent.getEndpoint() != null ? agent.getEndpoint() : "https://jiutian.10086.cn/largemodel/api/v2/completions";
-            ResponseEntity<byte[]> response = restTemplate.postForEntity(endpoint, request, byte[].class);
+            call = callMetrics.start(agent, endpoint, JiutianCallMetrics.MODE_BLOCKING);
+            HttpResponse<byte[]> response = jiutianHttpClient.postForBytes(endpoint, agent.getConfig(), jsonRequest, headers);
 
             // 检查是否为认证错误，如果是则刷新Token并重试
-            if (isAuthenticationError(response)) {
+            if (isAuthenticationError(response.statusCode(), response.body())) {
                 log.warn("检测到认证错误，尝试刷新Token并重试 for agent: {}", agent.getName());
                 try {
                     // 强制刷新Token
                     String refreshedToken = jiutianTokenService.refreshToken(agent.getApiKey());
                     
-                    // 更新请求头中的Token
-                    headers.setBearerAuth(refreshedToken);
-                    headers.set("Authorization", "Bearer " + refreshedToken);
-                    
-                    // 重新创建请求并重试
-                    HttpEntity<Map<String, Object>> retryRequest = new HttpEntity<>(requestBody, headers);
-                    response = restTemplate.postForEntity(endpoint, retryRequest, byte[].class);
+                    // 更新请求头中的Token并重试
+                    headers.put("Authorization", "Bearer " + refreshedToken);
+                    response = jiutianHttpClient.postForBytes(endpoint, agent.getConfig(), jsonRequest, headers);
+                    call.authRetry(true);
                     
                     log.info("Token刷新成功，重试请求成功 for agent: {}", agent.getName());
                 } catch (Exception refreshException) {
+                    call.authRetry(false);
                     log.error("Token刷新失败 for agent: {}", agent.getName(), refreshException);
                     throw new RuntimeException("Authentication Token已过期，请重新生成");
                 }
             }
 
-            if (response.getStatusCode().is2xxSuccessful()) {
+            if (response.statusCode() >= 200 && response.statusCode() < 300) {
                 // 正确处理UTF-8编码
-                String responseBody = new String(response.getBody(), java.nio.charset.StandardCharsets.UTF_8);
+                String responseBody = new String(response.body(), StandardCharsets.UTF_8);
+                String content;
                 try {
-                    Map<String, Object> responseMap = objectMapper.readValue(responseBody, Map.class);
-
-                    // 解析九天平台响应格式 - 处理choices数组
-                    if (responseMap.containsKey("choices")) {
-                        List<Map<String, Object>> choices = (List<Map<String, Object>>) responseMap.get("choices");
-                        if (!choices.isEmpty()) {
-                            Map<String, Object> firstChoice = choices.get(0);
-                            if (firstChoice.containsKey("message")) {
-                                Map<String, Object> message = (Map<String, Object>) firstChoice.get("message");
-                                if (message.containsKey("content")) {
-                                    return (String) message.get("content");
-                                }
-                            }
-                            // 备用：直接从choice获取text字段
-                            if (firstChoice.containsKey("text")) {
-                                return (String) firstChoice.get("text");
-                            }
-                        }
-                    }
-
-                    // 解析九天平台响应格式 - 处理data字段
-                    if (responseMap.containsKey("data")) {
-                        Map<String, Object> data = (Map<String, Object>) responseMap.get("data");
-                        if (data.containsKey("content")) {
-                            return (String) data.get("content");
-                        }
-                    }
-
-                    // 备用解析方式
-                    if (responseMap.containsKey("content")) {
-                        return (String) responseMap.get("content");
-                    }
-
-                    if (responseMap.containsKey("message")) {
-                        return (String) responseMap.get("message");
-                    }
-
-                    log.warn("九天平台响应内容为空或格式不正确: {}", responseBody);
-                    throw new RuntimeException("智能体响应格式异常");
-
+                    content = extractBlockingContent(responseBody);
                 } catch (Exception e) {
+                    call.parseFailure();
                     log.error("解析九天平台响应失败: {}", responseBody, e);
                     throw new RuntimeException("解析智能体响应失败: " + responseBody);
                 }
+                call.success();
+                responseCache.put(cacheKey, content);
+                return content;
             } else {
-                log.error("九天API调用失败，状态码: {}, 响应: {}", response.getStatusCode(), response.getBody());
+                log.error("九天API调用失败，状态码: {}, 响应: {}", response.statusCode(), new String(response.body(), StandardCharsets.UTF_8));
                 throw new RuntimeException("智能体暂时无法响应，请稍后再试。");
             }
 
         } catch (Exception e) {
+            if (call != null) {
+                call.failure();
+            }
+            if (e instanceof BusinessException businessException) {
+                throw businessException;
+            }
             log.error("调用九天API时发生错误", e);
             throw new RuntimeException("智能体暂时无法响应，请稍后再试。", e);
         }
     }
     
+    /**
+     * 解析九天平台一次性响应的回复内容
+     */
+    @SuppressWarnings("unchecked")
+    private String extractBlockingContent(String responseBody) throws Exception {
+        Map<String, Object> responseMap = objectMapper.readValue(responseBody, Map.class);
+
+        // 解析九天平台响应格式 - 处理choices数组
+        if (responseMap.containsKey("choices")) {
+            List<Map<String, Object>> choices = (List<Map<String, Object>>) responseMap.get("choices");
+            if (!choices.isEmpty()) {
+                Map<String, Object> firstChoice = choices.get(0);
+                if (firstChoice.containsKey("message")) {
+                    Map<String, Object> message = (Map<String, Object>) firstChoice.get("message");
+                    if (message.containsKey("content")) {
+                        return (String) message.get("content");
+                    }
+                }
+                // 备用：直接从choice获取text字段
+                if (firstChoice.containsKey("text")) {
+                    return (String) firstChoice.get("text");
+                }
+            }
+        }
+
+        // 解析九天平台响应格式 - 处理data字段
+        if (responseMap.containsKey("data")) {
+            Map<String, Object> data = (Map<String, Object>) responseMap.get("data");
+            if (data.containsKey("content")) {
+                return (String) data.get("content");
+            }
+        }
+
+        // 备用解析方式
+        if (responseMap.containsKey("content")) {
+            return (String) responseMap.get("content");
+        }
+
+        if (responseMap.containsKey("message")) {
+            return (String) responseMap.get("message");
+        }
+
+        log.warn("九天平台响应内容为空或格式不正确: {}", responseBody);
+        throw new RuntimeException("智能体响应格式异常");
+    }
+    
     /**
      * 检查是否为认证错误
      */
-    private boolean isAuthenticationError(ResponseEntity<byte[]> response) {
+    private static boolean isAuthenticationError(Throwable error) {
+        return error instanceof WebClientResponseException responseException
+                && (responseException.getStatusCode().value() == 401 || responseException.getStatusCode().value() == 403);
+    }
+    
+    private boolean isAuthenticationError(int statusCode, byte[] body) {
         // 检查HTTP状态码
-        if (response.getStatusCode().value() == 401 || response.getStatusCode().value() == 403) {
+        if (statusCode == 401 || statusCode == 403) {
             return true;
         }
         
         // 检查响应体中的错误信息
-        if (response.getBody() != null) {
+        if (body != null) {
             try {
-                String responseBody = new String(response.getBody(), java.nio.charset.StandardCharsets.UTF_8);
+                String responseBody = new String(body, StandardCharsets.UTF_8);
                 String lowerCaseBody = responseBody.toLowerCase();
                 
                 // 检查九天平台特定的错误码
@@ -467,358 +810,191 @@ public class ChatService {
     /**
      * 调用九天API（支持流式回调）
      */
-    private String callJiutianAPIWithCallback(Agent agent, String userMessage, List<ChatHistory> history, Consumer<String> chunkCallback) {
+    private String callJiutianAPIWithCallback(Agent agent, String userMessage, List<ChatTurn> history, Consumer<String> chunkCallback) {
+        AgentResponseCache.Key cacheKey = responseCache.keyFor(agent, userMessage, history);
+        Optional<String> cached = responseCache.get(cacheKey);
+        if (cached.isPresent()) {
+            // 命中缓存：按片段回放，调用方无需区分
+            splitCachedResponse(cached.get()).forEach(chunkCallback);
+            return cached.get();
+        }
+        
+        JiutianCallMetrics.Call call = null;
         try {
-            // 构建九天平台请求体格式 - 根据官方文档
-            Map<String, Object> requestBody = new HashMap<>();
-            
-            // 构建history数组，格式为[["Q1","A1"], ["Q2","A2"]]
-            List<List<String>> historyArray = new ArrayList<>();
-            
-            // 将历史对话转换为九天API要求的格式
-            for (int i = 0; i < history.size(); i += 2) {
-                if (i + 1 < history.size()) {
-                    ChatHistory userChat = history.get(i);
-                    ChatHistory agentChat = history.get(i + 1);
-                    
-                    if (userChat.getMessageType() == ChatHistory.MessageType.USER && 
-                        agentChat.getMessageType() == ChatHistory.MessageType.AGENT) {
-                        List<String> pair = new ArrayList<>();
-                        pair.add(userChat.getContent());
-                        pair.add(agentChat.getContent());
-                        historyArray.add(pair);
-                    }
-                }
-            }
-            
-            // 根据九天大模型文档构建请求体
-            requestBody.put("modelId", "jiutian-lan");  // 使用九天蓝模型
-            requestBody.put("prompt", userMessage);  // 当前用户输入
-            requestBody.put("history", historyArray); // 历史对话数组格式
-            requestBody.put("stream", true); // 启用流式输出
+            Map<String, Object> requestBody = buildStreamRequestBody(userMessage, history);
+            Map<String, String> headers = buildStreamHeaders(agent);
+            String jsonRequest = objectMapper.writeValueAsString(requestBody);
+            String endpoint = resolveStreamEndpoint(agent);
+            call = callMetrics.start(agent, endpoint, JiutianCallMetrics.MODE_STREAM);
             
-            // 添加params参数
-            Map<String, Object> params = new HashMap<>();
-            params.put("temperature", 0.8);
-            params.put("top_p", 0.95);
-            params.put("max_gen_len", 256);
-            requestBody.put("params", params);
+            // 通过端点连接池发送请求，超时参数可由智能体config覆盖
+            try (JiutianHttpClientService.UpstreamStream upstream =
+                         jiutianHttpClient.postForStream(endpoint, agent.getConfig(), jsonRequest, headers)) {
+                call.connected();
 
-            // 验证九天平台认证信息
-            if (agent.getApiKey() == null || agent.getApiKey().trim().isEmpty()) {
-                log.warn("智能体 {} 缺少apiKey配置", agent.getName());
-                throw new RuntimeException("智能体配置不完整，请联系管理员。");
-            }
+                // 检查响应状态
+                int responseCode = upstream.getStatusCode();
+                if (responseCode != 200) {
+                    String errorResponse = new String(upstream.getBody().readAllBytes(), StandardCharsets.UTF_8);
+                    log.error("九天API调用失败，状态码: {}, 错误响应: {}", responseCode, errorResponse);
+                    throw new RuntimeException("智能体暂时无法响应，请稍后再试。");
+                }
 
-            // 使用JiutianTokenService获取有效的Token（自动刷新）
-            String validToken;
-            try {
-                validToken = jiutianTokenService.getValidToken(agent.getApiKey());
-                log.debug("获取到有效Token for agent: {}", agent.getName());
-            } catch (Exception e) {
-                log.error("获取Token失败 for agent: {}", agent.getName(), e);
-                throw new RuntimeException("Authentication Token已过期，请重新生成");
-            }
+                // 读取流式响应
+                StringBuilder fullResponse = new StringBuilder();
+                int dataChunkCount = 0;
 
-            // 构建请求URL - 使用智能体配置的endpoint
-            String endpoint = agent.getEndpoint() != null ? agent.getEndpoint() : "https://jiutian.10086.cn/largemodel/api/v1/completions";
-            URL url = new URL(endpoint);
-            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
-            
-            // 设置请求方法和头部 - 根据九天文档
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Accept", "text/event-stream");
-            connection.setRequestProperty("Authorization", "Bearer " + validToken);
-            connection.setDoOutput(true);
-            connection.setConnectTimeout(5000);   // 5秒连接超时
-            connection.setReadTimeout(180000);    // 3分钟读取超时（长对话）
-            
-            // 发送请求体
-            String jsonRequest = objectMapper.writeValueAsString(requestBody);
-            try (var outputStream = connection.getOutputStream()) {
-                outputStream.write(jsonRequest.getBytes(StandardCharsets.UTF_8));
-                outputStream.flush();
-            }
-            
-            // 检查响应状态
-            int responseCode = connection.getResponseCode();
-            if (responseCode != 200) {
-                String errorResponse = "";
-                try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getErrorStream(), StandardCharsets.UTF_8))) {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(upstream.getBody(), StandardCharsets.UTF_8))) {
                     String line;
                     while ((line = reader.readLine()) != null) {
-                        errorResponse += line;
-                    }
-                }
-                log.error("九天API调用失败，状态码: {}, 错误响应: {}", responseCode, errorResponse);
-                throw new RuntimeException("智能体暂时无法响应，请稍后再试。");
-            }
-            
-            // 读取流式响应
-            StringBuilder fullResponse = new StringBuilder();
-            int dataChunkCount = 0;
-            boolean hasValidData = false;
-            int lastSentLength = 0; // 用于跟踪已发送的内容长度，避免重复发送
-            
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8))) {
-                String line;
-                int totalLineCount = 0;
-                while ((line = reader.readLine()) != null) {
-                    totalLineCount++;
-                    log.debug("收到原始数据行 #{}: [{}]", totalLineCount, line);
-                    
-                    // 跳过空行
-                    if (line.trim().isEmpty()) {
-                        continue;
-                    }
-                    
-                    String jsonData = null;
-                    
-                    // 处理标准SSE格式 (data: {...})
-                    if (line.startsWith("data: ")) {
-                        jsonData = line.substring(6); // 移除"data: "前缀
-                        if ("[DONE]".equals(jsonData.trim())) {
-                            log.info("收到SSE流结束标记");
+                        String jsonData = extractStreamPayload(line);
+                        if (STREAM_DONE.equals(jsonData)) {
                             break;
                         }
-                    }
-                    // 处理九天API的直接JSON格式
-                    else if (line.startsWith("data:")) {
-                        jsonData = line.substring(5); // 移除"data:"前缀
-                        if ("[DONE]".equals(jsonData.trim())) {
-                            log.info("收到九天流结束标记");
-                            break;
+                        if (jsonData == null) {
+                            continue;
                         }
-                    }
-                    // 处理纯JSON行（九天API的实际格式）
-                    else if (line.startsWith("{") && line.endsWith("}")) {
-                        jsonData = line;
-                    }
-                    
-                    // 如果找到了JSON数据，进行解析
-                    if (jsonData != null && !jsonData.trim().isEmpty()) {
+
                         dataChunkCount++;
-                        log.debug("处理数据块 #{}: [{}]", dataChunkCount, jsonData.length() > 200 ? jsonData.substring(0, 200) + "..." : jsonData);
-                        
-                        try {
-                            // 解析JSON数据
-                            Map<String, Object> dataMap = objectMapper.readValue(jsonData, Map.class);
-                            log.debug("解析到数据块 #{}", dataChunkCount);
-                            
-                            // 传递lastSentLength的引用来跟踪已发送长度
-                            String content = extractContentFromStreamData(dataMap, fullResponse.length());
-                            
-                            if (content != null && !content.isEmpty()) {
-                                hasValidData = true;
-                                fullResponse.append(content);
-                                log.debug("提取到内容: [{}]", content);
-                                // 调用回调函数发送数据块
-                                chunkCallback.accept(content);
-                            } else {
-                                log.debug("数据块 #{} 未提取到有效内容", dataChunkCount);
-                            }
-                        } catch (Exception e) {
-                            log.warn("解析流式数据失败 (块 #{}): {}", dataChunkCount, e.getMessage());
-                            // 继续处理下一行
+                        String content = streamFrameDecoder.decode(jsonData, fullResponse.length(), call::parseFailure);
+                        if (content != null && !content.isEmpty()) {
+                            call.chunk();
+                            fullResponse.append(content);
+                            // 调用回调函数发送数据块
+                            chunkCallback.accept(content);
                         }
-                    } else {
-                        log.debug("跳过非JSON行: [{}]", line.length() > 100 ? line.substring(0, 100) + "..." : line);
                     }
                 }
-                log.info("流式响应读取完成，总共读取 {} 行，其中 {} 个数据块", totalLineCount, dataChunkCount);
-            }
-            
-            log.info("流式响应处理完成，共处理 {} 个数据块，是否有有效数据: {}", dataChunkCount, hasValidData);
-            
-            String result = fullResponse.toString();
-            if (result.isEmpty()) {
-                throw new RuntimeException("智能体响应为空");
+
+                log.info("流式响应处理完成，共处理 {} 个数据块", dataChunkCount);
+
+                String result = fullResponse.toString();
+                if (result.isEmpty()) {
+                    throw new RuntimeException("智能体响应为空");
+                }
+
+                call.success();
+                responseCache.put(cacheKey, result);
+                return result;
             }
             
-            return result;
-            
         } catch (Exception e) {
+            if (call != null) {
+                call.failure();
+            }
+            if (e instanceof BusinessException businessException) {
+                throw businessException;
+            }
             log.error("调用九天API流式接口时发生错误", e);
             throw new RuntimeException("智能体暂时无法响应，请稍后再试。", e);
         }
     }
     
     /**
-     * 从流式数据中提取内容
+     * 构建九天流式请求体 - 根据官方文档
      */
-    private String extractContentFromStreamData(Map<String, Object> dataMap, int currentLength) {
-        // 添加详细的调试日志
-        log.info("提取内容 - 数据结构: {}", dataMap);
-        
-        // 根据九天平台流式响应格式解析
-        // 格式: {"response":"累计内容","delta":"新增内容","finished":null/"Stop"}
+    private Map<String, Object> buildStreamRequestBody(String userMessage, List<ChatTurn> history) {
+        Map<String, Object> requestBody = new HashMap<>();
         
-        // 优先使用delta字段（新增内容）
-        if (dataMap.containsKey("delta")) {
-            Object deltaObj = dataMap.get("delta");
-            log.info("发现delta字段，类型: {}, 值: {}", deltaObj != null ? deltaObj.getClass().getSimpleName() : "null", deltaObj);
-            
-            if (deltaObj instanceof String) {
-                String delta = (String) deltaObj;
-                // 过滤掉结束标记
-                if (delta != null && !"[EOS]".equals(delta) && !delta.trim().isEmpty()) {
-                    log.info("从delta字段提取到内容: [{}]", delta);
-                    return delta;
-                }
+        // 构建history数组，格式为[["Q1","A1"], ["Q2","A2"]]
+        // 历史中可能有没有对应回复的用户消息（发给其他智能体或回复失败），逐条扫描，只取紧跟智能体回复的用户消息
+        List<List<String>> historyArray = new ArrayList<>();
+        for (int i = 0; i + 1 < history.size(); i++) {
+            ChatTurn userChat = history.get(i);
+            ChatTurn agentChat = history.get(i + 1);
+            if (userChat.getMessageType() == ChatHistory.MessageType.USER &&
+                agentChat.getMessageType() == ChatHistory.MessageType.AGENT) {
+                historyArray.add(Arrays.asList(userChat.getContent(), agentChat.getContent()));
+                i++;
             }
         }
         
-        // 如果没有delta或delta为空，尝试使用response字段（累计内容）
-        // 需要计算增量内容，避免重复发送
-        if (dataMap.containsKey("response")) {
-            Object responseObj = dataMap.get("response");
-            log.info("发现response字段，类型: {}, 值: {}", responseObj != null ? responseObj.getClass().getSimpleName() : "null", responseObj);
-            
-            if (responseObj instanceof String) {
-                String response = (String) responseObj;
-                if (response != null && !response.trim().isEmpty()) {
-                    // 计算新增的内容（避免重复发送累计内容）
-                    if (response.length() > currentLength) {
-                        String newContent = response.substring(currentLength);
-                        log.info("从response字段提取到新增内容: [{}]，当前累计长度: {}", newContent, response.length());
-                        return newContent;
-                    } else {
-                        log.debug("response字段内容未增加，跳过发送");
-                        return null;
-                    }
-                }
-            }
-        }
+        // 根据九天大模型文档构建请求体
+        requestBody.put("modelId", "jiutian-lan");  // 使用九天蓝模型
+        requestBody.put("prompt", userMessage);  // 当前用户输入
+        requestBody.put("history", historyArray); // 历史对话数组格式
+        requestBody.put("stream", true); // 启用流式输出
         
-        // 兼容其他可能的格式
-        if (dataMap.containsKey("choices")) {
-            Object choicesObj = dataMap.get("choices");
-            log.info("发现choices字段，类型: {}", choicesObj != null ? choicesObj.getClass().getSimpleName() : "null");
-            
-            if (choicesObj instanceof List) {
-                List<Map<String, Object>> choices = (List<Map<String, Object>>) choicesObj;
-                if (!choices.isEmpty()) {
-                    Map<String, Object> firstChoice = choices.get(0);
-                    log.info("第一个choice结构: {}", firstChoice);
-                    
-                    if (firstChoice.containsKey("delta")) {
-                         Object deltaObj = firstChoice.get("delta");
-                         log.info("choice中的delta字段，类型: {}, 值: {}", deltaObj != null ? deltaObj.getClass().getSimpleName() : "null", deltaObj);
-                         
-                         if (deltaObj instanceof Map) {
-                             Map<String, Object> delta = (Map<String, Object>) deltaObj;
-                             
-                             // 检查是否有content字段
-                             if (delta.containsKey("content")) {
-                                 Object contentObj = delta.get("content");
-                                 if (contentObj instanceof String) {
-                                     String content = (String) contentObj;
-                                     log.info("从choices.delta.content提取到内容: [{}]", content);
-                                     return content;
-                                 }
-                             }
-                             
-                             // 检查是否有tool_calls字段（九天API的实际格式）
-                             if (delta.containsKey("tool_calls")) {
-                                 Object toolCallsObj = delta.get("tool_calls");
-                                 log.info("发现tool_calls字段，类型: {}", toolCallsObj != null ? toolCallsObj.getClass().getSimpleName() : "null");
-                                 
-                                 if (toolCallsObj instanceof List) {
-                                     List<Map<String, Object>> toolCalls = (List<Map<String, Object>>) toolCallsObj;
-                                     for (Map<String, Object> toolCall : toolCalls) {
-                                         log.info("处理tool_call: role={}, type={}", toolCall.get("role"), toolCall.get("type"));
-                                         
-                                         // 检查type为text的工具调用（这是实际的文本内容）
-                                         if ("text".equals(toolCall.get("type"))) {
-                                             // 直接从text字段获取内容
-                                             Object textObj = toolCall.get("text");
-                                             if (textObj instanceof String) {
-                                                 String text = (String) textObj;
-                                                 log.info("从tool_calls.text提取到内容: [{}]", text);
-                                                 return text;
-                                             }
-                                         }
-                                         
-                                         // 检查role为memory的工具调用（可能包含其他信息）
-                                         if ("memory".equals(toolCall.get("role"))) {
-                                             Object contentObj = toolCall.get("content");
-                                             if (contentObj instanceof Map) {
-                                                 Map<String, Object> contentMap = (Map<String, Object>) contentObj;
-                                                 if (contentMap.containsKey("output")) {
-                                                     Object outputObj = contentMap.get("output");
-                                                     if (outputObj instanceof String) {
-                                                         String output = (String) outputObj;
-                                                         log.info("从tool_calls.content.output提取到内容: [{}]", output);
-                                                         return output;
-                                                     }
-                                                 }
-                                             }
-                                         }
-                                         
-                                         // 检查role为assistant的工具调用（保持向后兼容）
-                                         if ("assistant".equals(toolCall.get("role"))) {
-                                             Object contentObj = toolCall.get("content");
-                                             if (contentObj instanceof Map) {
-                                                 Map<String, Object> contentMap = (Map<String, Object>) contentObj;
-                                                 if (contentMap.containsKey("output")) {
-                                                     Object outputObj = contentMap.get("output");
-                                                     if (outputObj instanceof String) {
-                                                         String output = (String) outputObj;
-                                                         log.info("从tool_calls.content.output提取到内容: [{}]", output);
-                                                         return output;
-                                                     }
-                                                 }
-                                             }
-                                         }
-                                     }
-                                 }
-                             }
-                         }
-                     }
-                    if (firstChoice.containsKey("text")) {
-                        Object textObj = firstChoice.get("text");
-                        if (textObj instanceof String) {
-                            String text = (String) textObj;
-                            log.info("从choices.text提取到内容: [{}]", text);
-                            return text;
-                        }
-                    }
-                }
-            }
+        // 添加params参数
+        Map<String, Object> params = new HashMap<>();
+        params.put("temperature", 0.8);
+        params.put("top_p", 0.95);
+        params.put("max_gen_len", 256);
+        requestBody.put("params", params);
+        return requestBody;
+    }
+    
+    /**
+     * 构建九天流式请求头（校验apiKey并获取有效Token）
+     */
+    private Map<String, String> buildStreamHeaders(Agent agent) {
+        // 验证九天平台认证信息
+        if (agent.getApiKey() == null || agent.getApiKey().trim().isEmpty()) {
+            log.warn("智能体 {} 缺少apiKey配置", agent.getName());
+            throw new RuntimeException("智能体配置不完整，请联系管理员。");
         }
-        
-        // 备用解析方式
-        if (dataMap.containsKey("content")) {
-            Object contentObj = dataMap.get("content");
-            if (contentObj instanceof String) {
-                String content = (String) contentObj;
-                log.info("从content字段提取到内容: [{}]", content);
-                return content;
-            }
+
+        // 使用JiutianTokenService获取有效的Token（自动刷新）
+        String validToken;
+        try {
+            validToken = jiutianTokenService.getValidToken(agent.getApiKey());
+            log.debug("获取到有效Token for agent: {}", agent.getName());
+        } catch (Exception e) {
+            log.error("获取Token失败 for agent: {}", agent.getName(), e);
+            throw new RuntimeException("Authentication Token已过期，请重新生成");
+        }
+
+        // 设置请求头部 - 根据九天文档
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/json");
+        headers.put("Accept", "text/event-stream");
+        headers.put("Authorization", "Bearer " + validToken);
+        return headers;
+    }
+    
+    /**
+     * 流式接口地址 - 使用智能体配置的endpoint
+     */
+    private String resolveStreamEndpoint(Agent agent) {
+        return agent.getEndpoint() != null ? agent.getEndpoint() : "https://jiutian.10086.cn/largemodel/api/v1/completions";
+    }
+    
+    /**
+     * 从流式响应的一行中取出JSON数据
+     * 返回STREAM_DONE表示流结束，返回null表示该行无数据
+     */
+    private String extractStreamPayload(String line) {
+        // 跳过空行
+        if (line == null || line.trim().isEmpty()) {
+            return null;
         }
         
-        if (dataMap.containsKey("text")) {
-            Object textObj = dataMap.get("text");
-            if (textObj instanceof String) {
-                String text = (String) textObj;
-                log.info("从text字段提取到内容: [{}]", text);
-                return text;
+        String jsonData = null;
+        
+        // 处理SSE格式 (data: {...} 或 九天的 data:{...})
+        if (line.startsWith("data:")) {
+            jsonData = line.substring(5).trim(); // 移除"data:"前缀
+            if ("[DONE]".equals(jsonData)) {
+                log.debug("收到流结束标记");
+                return STREAM_DONE;
             }
         }
+        // 处理纯JSON行（九天API的实际格式）
+        else if (line.startsWith("{") && line.endsWith("}")) {
+            jsonData = line;
+        }
         
-        log.warn("未能从数据中提取到任何内容，数据键: {}", dataMap.keySet());
-        return null;
+        return jsonData != null && !jsonData.isEmpty() ? jsonData : null;
     }
-
+    
     /**
      * 构建消息列表
      */
-    private List<Map<String, Object>> buildMessages(String userMessage, List<ChatHistory> history) {
+    private List<Map<String, Object>> buildMessages(String userMessage, List<ChatTurn> history) {
         List<Map<String, Object>> messages = new ArrayList<>();
         
         // 添加历史消息
-        for (ChatHistory chat : history) {
+        for (ChatTurn chat : history) {
             if (chat.getMessageType() == ChatHistory.MessageType.USER) {
                 Map<String, Object> message = new HashMap<>();
                 message.put("role", "user");
@@ -846,32 +1022,33 @@ public class ChatService {
      */
     @Transactional(readOnly = true)
     public List<ChatHistory> getChatHistory(Long userId, String sessionId, Long agentId) {
+        // 只查询最近的maxHistoryLength条消息（按序号倒序取，再恢复为正序）
+        Pageable window = PageRequest.of(0, maxHistoryLength);
         List<ChatHistory> history;
         
         if (agentId != null) {
-            history = chatHistoryRepository.findByUser_IdAndAgent_IdAndSessionIdOrderBySequenceNumberAsc(userId, agentId, sessionId);
+            history = chatHistoryRepository.findByUser_IdAndAgent_IdAndSessionIdOrderBySequenceNumberDesc(userId, agentId, sessionId, window);
         } else {
-            history = chatHistoryRepository.findByUser_IdAndSessionIdOrderBySequenceNumberAsc(userId, sessionId);
-        }
-        
-        // 在事务内访问懒加载属性，确保代理对象被初始化
-        for (ChatHistory chat : history) {
-            if (chat.getUser() != null) {
-                // 触发懒加载
-                chat.getUser().getUsername();
-            }
-            if (chat.getAgent() != null) {
-                // 触发懒加载
-                chat.getAgent().getName();
-            }
-        }
-        
-        // 限制历史长度
-        if (history.size() > maxHistoryLength) {
-            history = history.subList(history.size() - maxHistoryLength, history.size());
+            history = chatHistoryRepository.findByUser_IdAndSessionIdOrderBySequenceNumberDesc(userId, sessionId, window);
         }
         
-        return history;
+        List<ChatHistory> ordered = new ArrayList<>(history);
+        Collections.reverse(ordered);
+        return ordered;
+    }
+    
+    /**
+     * 获取构建提示词所需的历史对话（用户消息及该智能体的成功回复，不含当前消息）
+     */
+    private List<ChatTurn> getPromptHistory(ChatHistory userMessage, Long agentId) {
+        // 活跃会话直接命中上下文缓存，未命中时查询数据库
+        return conversationContextCache.getTurns(userMessage, agentId, () -> {
+            List<ChatTurn> turns = new ArrayList<>(chatHistoryRepository.findRecentTurns(
+                    userMessage.getUserId(), userMessage.getSessionId(), agentId,
+                    userMessage.getSequenceNumber(), PageRequest.of(0, maxHistoryLength)));
+            Collections.reverse(turns);
+            return turns;
+        });
     }
     
     /**
@@ -906,6 +1083,7 @@ public class ChatService {
         }
         
         chatHistoryRepository.deleteChatHistoryBySessionId(sessionId);
+        conversationContextCache.evictSession(sessionId);
     }
     
     /**
@@ -915,6 +1093,7 @@ public class ChatService {
     public void clearUserChatHistory(Long userId) {
         log.info("Clearing chat history for user: {}", userId);
         chatHistoryRepository.deleteChatHistoryByUserId(userId);
+        conversationContextCache.evictUser(userId);
     }
 
 
@@ -933,35 +1112,15 @@ public class ChatService {
         }
         
         chatHistoryRepository.deleteById(messageId);
+        conversationContextCache.evictSession(message.getSessionId());
         log.info("Message deleted: {} by user: {}", messageId, userId);
     }
     
-    /**
-     * 提取消息中提到的智能体
-     */
-    private List<String> extractMentionedAgents(String content) {
-        List<String> agents = new ArrayList<>();
-        Matcher matcher = AGENT_MENTION_PATTERN.matcher(content);
-        
-        while (matcher.find()) {
-            String agentName = matcher.group(1);
-            if (!agents.contains(agentName)) {
-                agents.add(agentName);
-            }
-        }
-        
-        return agents;
-    }
-    
     /**
      * 获取下一个序列号
      */
     private Integer getNextSequenceNumber(String sessionId) {
-        List<ChatHistory> sessionMessages = chatHistoryRepository.findBySessionIdOrderBySequenceNumberAsc(sessionId);
-        if (sessionMessages.isEmpty()) {
-            return 1;
-        }
-        return sessionMessages.get(sessionMessages.size() - 1).getSequenceNumber() + 1;
+        return sessionSequenceService.next(sessionId);
     }
     
     /**
@@ -978,7 +1137,7 @@ public class ChatService {
         errorResponse.setParentMessageId(userMessage.getId());
         errorResponse.setSequenceNumber(getNextSequenceNumber(userMessage.getSessionId()));
         
-        return chatHistoryRepository.save(errorResponse);
+        return chatHistoryWriter.save(errorResponse);
     }
     
     /**
@@ -1072,6 +1231,37 @@ public class ChatService {
     public void cleanupExpiredSessions() {
         LocalDateTime cutoffTime = LocalDateTime.now().minusSeconds(sessionTimeoutSeconds);
         int deletedCount = chatHistoryRepository.deleteOldChatHistory(cutoffTime);
+        if (deletedCount > 0) {
+            conversationContextCache.evictAll();
+        }
         log.info("Cleaned up {} expired chat messages", deletedCount);
     }
-}
\ No newline at end of file
+
+    /**
+     * 流式回复上下文
+     */
+    private static class AgentStreamContext {
+        private final Agent agent;
+        private final ChatHistory agentResponse;
+        private final String endpoint;
+        private final String jsonRequest;
+        private final Map<String, String> headers;
+        private final AgentResponseCache.Key cacheKey;
+        // 命中回复缓存时不为null，不请求上游
+        private final String cachedResponse;
+        // 完成、失败、取消只生效其一
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        AgentStreamContext(Agent agent, ChatHistory agentResponse, String endpoint,
+                           String jsonRequest, Map<String, String> headers,
+                           AgentResponseCache.Key cacheKey, String cachedResponse) {
+            this.agent = agent;
+            this.agentResponse = agentResponse;
+            this.endpoint = endpoint;
+            this.jsonRequest = jsonRequest;
+            this.headers = headers;
+            this.cacheKey = cacheKey;
+            this.cachedResponse = cachedResponse;
+        }
+    }
+}
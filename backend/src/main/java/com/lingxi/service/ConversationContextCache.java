@@ -0,0 +1,254 @@
+package com.lingxi.service;
+
+import com.lingxi.dto.ChatTurn;
+import com.lingxi.entity.ChatHistory;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * 会话上下文热缓存
+ * 按 sessionId + agentId 缓存最近的对话轮次（用户消息及该智能体的成功回复），
+ * 由消息保存路径写入，活跃会话构建提示词时无需查询数据库。
+ * 会话表为ConcurrentHashMap，只在单个会话的窗口上加锁，不同会话的读写互不阻塞。
+ * 会话数量超过上限时按最近访问时间淘汰最久未访问的会话（一次清理到上限的90%，摊薄扫描开销），
+ * 超过会话超时时间未访问的条目定时清理
+ */
+@Slf4j
+@Service
+public class ConversationContextCache {
+
+    @Value("${app.chat.max-history-length:20}")
+    private int maxHistoryLength;
+
+    @Value("${app.chat.context-cache.max-sessions:2000}")
+    private int maxSessions;
+
+    @Value("${app.chat.session-timeout:3600}")
+    private int sessionTimeoutSeconds;
+
+    // sessionId -> 会话内各智能体的上下文窗口
+    private final ConcurrentHashMap<String, SessionContext> sessions = new ConcurrentHashMap<>();
+
+    // 同一时刻只有一个线程执行超限淘汰
+    private final AtomicBoolean trimming = new AtomicBoolean();
+
+    /**
+     * 获取提示词历史（序号小于当前消息的轮次）
+     * 命中缓存时直接返回；否则通过loader从数据库加载，连同当前消息一起写入缓存
+     */
+    public List<ChatTurn> getTurns(ChatHistory userMessage, Long agentId, Supplier<List<ChatTurn>> loader) {
+        String sessionId = userMessage.getSessionId();
+        Long userId = userMessage.getUserId();
+        if (sessionId == null) {
+            return loader.get();
+        }
+
+        SessionContext cached = sessions.get(sessionId);
+        if (cached != null && cached.userId.equals(userId)) {
+            Window window = cached.windows.get(agentId);
+            if (window != null) {
+                cached.touch();
+                return window.before(userMessage.getSequenceNumber());
+            }
+        }
+
+        List<ChatTurn> loaded = loader.get();
+        SessionContext session = sessions.computeIfAbsent(sessionId, id -> new SessionContext(userId));
+        if (session.userId.equals(userId)) {
+            Window window = session.windows.computeIfAbsent(agentId, id -> new Window());
+            window.addAll(loaded, toTurn(userMessage));
+            session.touch();
+        }
+        if (sessions.size() > maxSessions) {
+            trimToSize();
+        }
+        return loaded;
+    }
+
+    /**
+     * 消息记录转换为对话轮次
+     */
+    public static ChatTurn toTurn(ChatHistory message) {
+        return new ChatTurn(message.getMessageType(), message.getContent(), message.getSequenceNumber());
+    }
+
+    /**
+     * 写入用户消息（追加到该会话所有已缓存的智能体窗口），事务提交后生效
+     */
+    public void addUserTurn(Long userId, String sessionId, ChatTurn turn) {
+        afterCommit(() -> {
+            SessionContext session = sessions.get(sessionId);
+            if (session != null && session.userId.equals(userId)) {
+                session.windows.values().forEach(window -> window.add(turn));
+                session.touch();
+            }
+        });
+    }
+
+    /**
+     * 写入智能体成功回复（追加到对应智能体窗口），事务提交后生效
+     */
+    public void addAgentTurn(Long userId, String sessionId, Long agentId, ChatTurn turn) {
+        afterCommit(() -> {
+            SessionContext session = sessions.get(sessionId);
+            if (session != null && session.userId.equals(userId)) {
+                Window window = session.windows.get(agentId);
+                if (window != null) {
+                    window.add(turn);
+                }
+                session.touch();
+            }
+        });
+    }
+
+    /**
+     * 删除会话时失效（事务提交后执行，避免提交前被旧数据重新填充）
+     */
+    public void evictSession(String sessionId) {
+        afterCommit(() -> sessions.remove(sessionId));
+    }
+
+    /**
+     * 删除用户历史时失效
+     */
+    public void evictUser(Long userId) {
+        afterCommit(() -> sessions.values().removeIf(session -> session.userId.equals(userId)));
+    }
+
+    /**
+     * 批量删除历史（如清理过期消息）时全部失效
+     */
+    public void evictAll() {
+        afterCommit(sessions::clear);
+    }
+
+    /**
+     * 清理超过会话超时时间未访问的条目
+     */
+    @Scheduled(fixedRate = 300000) // 每5分钟执行一次
+    public void cleanupExpiredSessions() {
+        long cutoff = System.currentTimeMillis() - sessionTimeoutSeconds * 1000L;
+        int removed = 0;
+        Iterator<SessionContext> iterator = sessions.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().lastAccess < cutoff) {
+                iterator.remove();
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            log.debug("Evicted {} idle conversation contexts", removed);
+        }
+    }
+
+    /**
+     * 会话数超过上限时淘汰最久未访问的会话，直到降到上限的90%
+     */
+    private void trimToSize() {
+        if (!trimming.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int excess = sessions.size() - maxSessions * 9 / 10;
+            if (excess <= 0) {
+                return;
+            }
+            // 访问时间在排序期间可能变化，先取快照再确定淘汰的时间线
+            long[] accessTimes = sessions.values().stream().mapToLong(session -> session.lastAccess).sorted().toArray();
+            if (accessTimes.length == 0) {
+                return;
+            }
+            long evictBefore = accessTimes[Math.min(excess, accessTimes.length) - 1];
+            int removed = 0;
+            Iterator<SessionContext> iterator = sessions.values().iterator();
+            while (iterator.hasNext() && removed < excess) {
+                if (iterator.next().lastAccess <= evictBefore) {
+                    iterator.remove();
+                    removed++;
+                }
+            }
+            log.debug("Evicted {} least recently used conversation contexts", removed);
+        } finally {
+            trimming.set(false);
+        }
+    }
+
+    private void afterCommit(Runnable action) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    action.run();
+                }
+            });
+        } else {
+            action.run();
+        }
+    }
+
+    private static class SessionContext {
+        private final Long userId;
+        private final Map<Long, Window> windows = new ConcurrentHashMap<>();
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        SessionContext(Long userId) {
+            this.userId = userId;
+        }
+
+        void touch() {
+            lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * 单个智能体的对话窗口，按序号有序，最多保留maxHistoryLength轮（读写在窗口自身上同步）
+     */
+    private class Window {
+        private final List<ChatTurn> turns = new ArrayList<>();
+
+        synchronized void addAll(List<ChatTurn> loaded, ChatTurn current) {
+            loaded.forEach(this::add);
+            add(current);
+        }
+
+        synchronized void add(ChatTurn turn) {
+            int index = turns.size();
+            while (index > 0 && turns.get(index - 1).getSequenceNumber() >= turn.getSequenceNumber()) {
+                if (turns.get(index - 1).getSequenceNumber().equals(turn.getSequenceNumber())) {
+                    return;
+                }
+                index--;
+            }
+            turns.add(index, turn);
+            while (turns.size() > maxHistoryLength + 1) {
+                turns.remove(0);
+            }
+        }
+
+        synchronized List<ChatTurn> before(Integer beforeSequence) {
+            List<ChatTurn> result = new ArrayList<>(turns.size());
+            for (ChatTurn turn : turns) {
+                if (beforeSequence == null || turn.getSequenceNumber() < beforeSequence) {
+                    result.add(turn);
+                }
+            }
+            if (result.size() > maxHistoryLength) {
+                result = result.subList(result.size() - maxHistoryLength, result.size());
+            }
+            return Collections.unmodifiableList(result);
+        }
+    }
+}
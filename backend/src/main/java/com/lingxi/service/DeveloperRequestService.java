@@ -4,6 +4,7 @@ import com.lingxi.entity.DeveloperRequest;
 import com.lingxi.entity.User;
 import com.lingxi.repository.DeveloperRequestRepository;
 import com.lingxi.repository.UserRepository;
+import com.lingxi.security.UserStatusCache;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.data.domain.Page;
@@ -25,6 +26,7 @@ public class DeveloperRequestService {
 
     private final DeveloperRequestRepository developerRequestRepository;
     private final UserRepository userRepository;
+    private final UserStatusCache userStatusCache;
 
     /**
      * 创建开发者申请
@@ -86,6 +88,7 @@ public class DeveloperRequestService {
             User applicant = request.getUser();
             applicant.setRole(User.UserRole.DEVELOPER);
             userRepository.save(applicant);
+            userStatusCache.invalidate(applicant.getUsername());
             log.info("User {} promoted to developer", applicant.getUsername());
         } else if (status == DeveloperRequest.RequestStatus.REJECTED) {
             request.reject(reviewer, reviewNotes);
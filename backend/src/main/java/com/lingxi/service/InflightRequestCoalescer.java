@@ -0,0 +1,179 @@
+package com.lingxi.service;
+
+import com.lingxi.entity.Agent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * 进行中上游请求合并（single-flight）
+ * 同一智能体、同一端点、请求体完全相同（问题相同且历史为空或相同）的流式请求共享一次上游调用：
+ * 首个请求建立上游流，之后的请求作为额外订阅者加入，先收到已产生的数据行，再跟随实时数据行。
+ * 共享的只是上游原始数据行，解析、计时、截止时间和指标由每个订阅者各自处理。
+ * 所有订阅者都离开后取消上游；上游结束、取消或缓冲行数达到上限后不再接受加入，之后的相同请求重新调用上游
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class InflightRequestCoalescer {
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${app.chat.inflight-coalescing.enabled:true}")
+    private boolean enabled;
+
+    @Value("${app.chat.inflight-coalescing.max-buffered-lines:2048}")
+    private int maxBufferedLines;
+
+    // 合并键 -> 进行中的共享上游
+    private final ConcurrentHashMap<String, SharedUpstream> inflight = new ConcurrentHashMap<>();
+    private final Map<String, Counter> joinCounters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("agent.request.inflight", inflight, Map::size)
+                .description("进行中的共享上游请求数")
+                .register(meterRegistry);
+    }
+
+    /**
+     * 生成合并键，未开启时返回null
+     */
+    public String keyFor(Agent agent, String endpoint, String jsonRequest) {
+        if (!enabled || jsonRequest == null) {
+            return null;
+        }
+        return agent.getId() + "|" + endpoint + "|" + sha256(jsonRequest);
+    }
+
+    /**
+     * 获取共享的上游数据行：没有可加入的相同请求时由upstream建立（订阅时才调用），否则加入已有的上游。
+     * key为null时不合并，直接订阅upstream
+     */
+    public Flux<String> share(Agent agent, String key, Supplier<Flux<String>> upstream) {
+        if (key == null) {
+            return Flux.defer(upstream);
+        }
+        return Flux.defer(() -> {
+            while (true) {
+                SharedUpstream existing = inflight.get(key);
+                if (existing != null) {
+                    Flux<String> joined = existing.join();
+                    if (joined != null) {
+                        joinCounter(agent).increment();
+                        log.debug("Joined in-flight upstream request for agent: {}", agent.getName());
+                        return joined;
+                    }
+                    // 已结束或不再接受加入，移除后由本请求重新建立
+                    inflight.remove(key, existing);
+                    continue;
+                }
+                SharedUpstream created = new SharedUpstream(key, upstream);
+                if (inflight.putIfAbsent(key, created) == null) {
+                    return created.join();
+                }
+            }
+        });
+    }
+
+    private Counter joinCounter(Agent agent) {
+        String agentTag = agent.getName() != null ? agent.getName() : String.valueOf(agent.getId());
+        return joinCounters.computeIfAbsent(agentTag, tag -> Counter.builder("agent.request.coalesced")
+                .description("加入进行中上游请求的次数")
+                .tag("agent", tag)
+                .register(meterRegistry));
+    }
+
+    private static String sha256(String value) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return Base64.getEncoder().encodeToString(digest.digest(value.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * 一次共享的上游调用
+     * replay最多保留maxBufferedLines行；已产生的行数达到一半时停止接受加入，
+     * 余量保证加入到实际订阅之间新到的行仍在缓冲区内，后加入者总能收到完整内容。
+     * autoConnect只连接一次，已结束的上游不会因后来的订阅重新发起调用；订阅者计数归零时显式取消上游
+     */
+    private final class SharedUpstream {
+        private final String key;
+        private final Flux<String> lines;
+        private Disposable connection;
+        private int subscribers;
+        private boolean closed;
+
+        SharedUpstream(String key, Supplier<Flux<String>> upstream) {
+            this.key = key;
+            AtomicLong produced = new AtomicLong();
+            long joinLimit = Math.max(1, maxBufferedLines / 2);
+            this.lines = Flux.defer(upstream)
+                    .doOnNext(line -> {
+                        if (produced.incrementAndGet() == joinLimit) {
+                            close();
+                        }
+                    })
+                    .doOnTerminate(this::close)
+                    .replay(maxBufferedLines)
+                    .autoConnect(1, this::connected);
+        }
+
+        /**
+         * 加入共享上游，已关闭时返回null
+         */
+        Flux<String> join() {
+            synchronized (this) {
+                if (closed) {
+                    return null;
+                }
+                subscribers++;
+            }
+            return lines.doFinally(signal -> leave());
+        }
+
+        private synchronized void connected(Disposable disposable) {
+            connection = disposable;
+        }
+
+        private void close() {
+            synchronized (this) {
+                closed = true;
+            }
+            inflight.remove(key, this);
+        }
+
+        private void leave() {
+            Disposable toCancel;
+            synchronized (this) {
+                if (--subscribers > 0) {
+                    return;
+                }
+                closed = true;
+                toCancel = connection;
+            }
+            inflight.remove(key, this);
+            if (toCancel != null) {
+                toCancel.dispose();
+            }
+        }
+    }
+}
@@ -4,14 +4,16 @@ import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.lingxi.entity.Agent;
 import com.lingxi.entity.ChatHistory;
-import com.lingxi.util.JiutianTokenUtil;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.http.*;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
@@ -28,7 +30,8 @@ public class JiutianApiService {
     private final RestTemplate restTemplate;
     private final ObjectMapper objectMapper;
     private final JiutianTokenService tokenService;
-    private final JiutianTokenUtil tokenUtil;
+    private final JiutianHttpClientService jiutianHttpClient;
+    private final AsyncTaskExecutor chatTaskExecutor;
 
     @Value("${app.jiutian.base-url}")
     private String jiutianBaseUrl;
@@ -56,7 +59,7 @@ public class JiutianApiService {
                 log.error("Error sending message to Jiutian API", e);
                 throw new RuntimeException("调用九天API失败: " + e.getMessage());
             }
-        });
+        }, chatTaskExecutor);
     }
 
     /**
@@ -71,7 +74,7 @@ public class JiutianApiService {
                 Map<String, Object> request = buildRequest(agent, userMessage, history);
                 
                 // 发送请求（使用智能体的API Key）
-                String response = callJiutianApi(agent.getEndpoint(), request, agent.getApiKey());
+                String response = callJiutianApi(agent.getEndpoint(), request, agent.getApiKey(), agent.getConfig());
                 
                 // 解析响应
                 String content = parseResponse(response);
@@ -112,7 +115,7 @@ public class JiutianApiService {
                 log.error("Error in stream message", e);
                 handler.onError(e);
             }
-        });
+        }, chatTaskExecutor);
     }
 
     /**
@@ -127,7 +130,7 @@ public class JiutianApiService {
             request.put("stream", true);
             
             // 模拟流式响应（实际应该使用SSE或WebSocket）
-            String fullResponse = callJiutianApi(agent.getEndpoint(), request, agent.getApiKey());
+            String fullResponse = callJiutianApi(agent.getEndpoint(), request, agent.getApiKey(), agent.getConfig());
             String content = parseResponse(fullResponse);
             
             // 分块发送
@@ -162,7 +165,7 @@ public class JiutianApiService {
                     "stream", false
             );
             
-            String response = callJiutianApi(agent.getEndpoint(), healthRequest, agent.getApiKey());
+            String response = callJiutianApi(agent.getEndpoint(), healthRequest, agent.getApiKey(), agent.getConfig());
             return response != null && !response.isEmpty();
             
         } catch (Exception e) {
@@ -313,14 +316,16 @@ public class JiutianApiService {
     /**
      * 调用九天API（带Token自动刷新）
      */
-    private String callJiutianApi(String endpoint, Map<String, Object> request, String agentApiKey) {
-        return callJiutianApiWithRetry(endpoint, request, agentApiKey, false);
+    private String callJiutianApi(String endpoint, Map<String, Object> request, String agentApiKey,
+                                  Map<String, String> agentConfig) {
+        return callJiutianApiWithRetry(endpoint, request, agentApiKey, agentConfig, false);
     }
     
     /**
      * 调用九天API（支持重试和Token刷新）
      */
-    private String callJiutianApiWithRetry(String endpoint, Map<String, Object> request, String agentApiKey, boolean isRetry) {
+    private String callJiutianApiWithRetry(String endpoint, Map<String, Object> request, String agentApiKey,
+                                           Map<String, String> agentConfig, boolean isRetry) {
         try {
             // 使用正确的九天平台API端点
             String url = endpoint != null && !endpoint.isEmpty() ? endpoint : 
@@ -329,45 +334,33 @@ public class JiutianApiService {
             // 获取有效的Token
             String effectiveApiKey = agentApiKey != null ? agentApiKey : apiKey;
             
-            // 检查Token是否即将过期，如果是则先刷新
-            if (effectiveApiKey != null && effectiveApiKey.contains(".")) {
-                String[] parts = effectiveApiKey.split("\\.", 2);
-                String secret = parts.length > 1 ? parts[1] : "";
-                String currentToken = tokenService.getValidToken(effectiveApiKey);
-                if (tokenUtil.shouldRefreshToken(currentToken, secret)) {
-                    log.info("Token将要过期，预先刷新Token");
-                    tokenService.refreshToken(effectiveApiKey);
-                }
-            }
-            
+            // 即将过期的Token由tokenService提前刷新
             String validToken = tokenService.getValidToken(effectiveApiKey);
             
-            HttpHeaders headers = new HttpHeaders();
-            headers.setContentType(MediaType.APPLICATION_JSON);
-            headers.set("Authorization", "Bearer " + validToken);
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Content-Type", "application/json");
+            headers.put("Authorization", "Bearer " + validToken);
             
             String requestBody = objectMapper.writeValueAsString(request);
-            HttpEntity<String> entity = new HttpEntity<>(requestBody, headers);
             
             log.debug("Calling Jiutian API: {} with request: {}", url, requestBody);
             
-            ResponseEntity<String> response = restTemplate.exchange(
-                    url, HttpMethod.POST, entity, String.class);
+            HttpResponse<byte[]> response = jiutianHttpClient.postForBytes(url, agentConfig, requestBody, headers);
             
-            if (response.getStatusCode() == HttpStatus.OK) {
-                return response.getBody();
+            if (response.statusCode() == HttpStatus.OK.value()) {
+                return new String(response.body(), StandardCharsets.UTF_8);
             } else {
-                String responseBody = response.getBody();
-                log.warn("API调用返回非200状态码: {}, 响应: {}", response.getStatusCode(), responseBody);
+                String responseBody = new String(response.body(), StandardCharsets.UTF_8);
+                log.warn("API调用返回非200状态码: {}, 响应: {}", response.statusCode(), responseBody);
                 
                 // 检查是否是认证错误
-                if (isAuthenticationError(response.getStatusCode(), responseBody) && !isRetry) {
+                if (isAuthenticationError(HttpStatusCode.valueOf(response.statusCode()), responseBody) && !isRetry) {
                     log.info("检测到认证错误，尝试刷新Token后重试");
                     tokenService.refreshToken(effectiveApiKey);
-                    return callJiutianApiWithRetry(endpoint, request, agentApiKey, true);
+                    return callJiutianApiWithRetry(endpoint, request, agentApiKey, agentConfig, true);
                 }
                 
-                throw new RuntimeException("API调用失败，状态码: " + response.getStatusCode() + ", 响应: " + responseBody);
+                throw new RuntimeException("API调用失败，状态码: " + response.statusCode() + ", 响应: " + responseBody);
             }
             
         } catch (Exception e) {
@@ -377,7 +370,7 @@ public class JiutianApiService {
                 try {
                     String effectiveApiKey = agentApiKey != null ? agentApiKey : apiKey;
                     tokenService.refreshToken(effectiveApiKey);
-                    return callJiutianApiWithRetry(endpoint, request, agentApiKey, true);
+                    return callJiutianApiWithRetry(endpoint, request, agentApiKey, agentConfig, true);
                 } catch (Exception refreshException) {
                     log.error("Token刷新失败", refreshException);
                 }
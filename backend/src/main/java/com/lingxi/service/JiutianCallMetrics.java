@@ -0,0 +1,165 @@
+package com.lingxi.service;
+
+import com.lingxi.entity.Agent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 九天调用指标
+ * 按智能体和上游端点（host）记录连接耗时、首字耗时（TTFT）、总耗时和每秒数据块数，
+ * 均发布百分位直方图，可在Prometheus中按p99首字耗时设置SLO；
+ * 另记录数据帧解析失败次数和认证失败后的Token刷新重试次数
+ *
+ * mode标签：blocking（一次性响应）、stream（回调流式）、reactive（WebClient流式）
+ */
+@Service
+@RequiredArgsConstructor
+public class JiutianCallMetrics {
+
+    public static final String MODE_BLOCKING = "blocking";
+    public static final String MODE_STREAM = "stream";
+    public static final String MODE_REACTIVE = "reactive";
+
+    private static final Duration MIN_EXPECTED_LATENCY = Duration.ofMillis(10);
+    private static final Duration MAX_EXPECTED_LATENCY = Duration.ofMinutes(3);
+
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * 开始一次上游调用计时
+     */
+    public Call start(Agent agent, String endpoint, String mode) {
+        return new Call(Tags.of("agent", agent.getName() != null ? agent.getName() : String.valueOf(agent.getId()),
+                "endpoint", endpointHost(endpoint), "mode", mode));
+    }
+
+    /**
+     * 认证失败后刷新Token重试（用于不属于单次调用计时的共享上游）
+     */
+    public void authRetry(Agent agent, String endpoint, String mode, boolean success) {
+        start(agent, endpoint, mode).authRetry(success);
+    }
+
+    private static String endpointHost(String endpoint) {
+        try {
+            String host = URI.create(endpoint).getHost();
+            return host != null ? host : "unknown";
+        } catch (IllegalArgumentException e) {
+            return "unknown";
+        }
+    }
+
+    private Timer timer(String name, String description, Tags tags) {
+        return Timer.builder(name)
+                .description(description)
+                .tags(tags)
+                .publishPercentileHistogram()
+                .minimumExpectedValue(MIN_EXPECTED_LATENCY)
+                .maximumExpectedValue(MAX_EXPECTED_LATENCY)
+                .register(meterRegistry);
+    }
+
+    /**
+     * 单次上游调用的计时状态（同一调用内按顺序使用，非线程安全）
+     */
+    public class Call {
+        private final Tags tags;
+        private final long startNanos = System.nanoTime();
+        private long connectedNanos;
+        private long firstTokenNanos;
+        private long chunks;
+        private boolean finished;
+
+        private Call(Tags tags) {
+            this.tags = tags;
+        }
+
+        /**
+         * 收到响应头（或首个字节）
+         */
+        public void connected() {
+            if (connectedNanos == 0) {
+                connectedNanos = System.nanoTime();
+                timer("jiutian.upstream.connect", "九天上游连接并收到响应的耗时", tags)
+                        .record(connectedNanos - startNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+
+        /**
+         * 收到一个非空内容块，首个内容块记录首字耗时
+         */
+        public void chunk() {
+            if (firstTokenNanos == 0) {
+                firstTokenNanos = System.nanoTime();
+                timer("jiutian.upstream.first_token", "九天上游首字耗时（TTFT）", tags)
+                        .record(firstTokenNanos - startNanos, TimeUnit.NANOSECONDS);
+            }
+            chunks++;
+        }
+
+        /**
+         * 数据帧或响应体解析失败
+         */
+        public void parseFailure() {
+            Counter.builder("jiutian.upstream.parse_failures")
+                    .description("九天响应解析失败次数")
+                    .tags(tags)
+                    .register(meterRegistry)
+                    .increment();
+        }
+
+        /**
+         * 认证失败后刷新Token重试
+         */
+        public void authRetry(boolean success) {
+            Counter.builder("jiutian.upstream.auth_retries")
+                    .description("认证失败后刷新Token重试次数")
+                    .tags(tags)
+                    .tag("outcome", success ? "success" : "failure")
+                    .register(meterRegistry)
+                    .increment();
+        }
+
+        public void success() {
+            finish("success");
+        }
+
+        public void failure() {
+            finish("failure");
+        }
+
+        public void cancelled() {
+            finish("cancelled");
+        }
+
+        private void finish(String outcome) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            long endNanos = System.nanoTime();
+            timer("jiutian.upstream.duration", "九天上游调用总耗时", tags.and("outcome", outcome))
+                    .record(endNanos - startNanos, TimeUnit.NANOSECONDS);
+
+            // 每秒数据块数：从首个内容块开始计算，近似上游生成速度（tokens/s）
+            if (firstTokenNanos != 0 && chunks > 1 && endNanos > firstTokenNanos) {
+                double seconds = (endNanos - firstTokenNanos) / 1_000_000_000.0;
+                DistributionSummary.builder("jiutian.upstream.chunks_per_second")
+                        .description("九天流式回复每秒数据块数")
+                        .tags(tags)
+                        .publishPercentileHistogram()
+                        .register(meterRegistry)
+                        .record(chunks / seconds);
+            }
+        }
+    }
+}
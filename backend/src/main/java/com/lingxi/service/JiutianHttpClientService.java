@@ -0,0 +1,376 @@
+package com.lingxi.service;
+
+import com.lingxi.exception.BusinessException;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.ResolvableType;
+import org.springframework.core.codec.StringDecoder;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.http.client.reactive.JdkClientHttpConnector;
+import org.springframework.stereotype.Service;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 九天上游HTTP客户端服务
+ * 按端点复用带连接池的HttpClient（keep-alive），端点支持时通过ALPN协商HTTP/2，
+ * 避免每次智能体回复都重新进行TCP+TLS握手
+ *
+ * 智能体可在config中按端点覆盖以下参数：
+ * httpVersion（HTTP_1_1 / HTTP_2）、connectTimeoutMs、readTimeoutMs
+ *
+ * 每个上游origin有一个并发许可上限（app.jiutian.max-concurrent-per-endpoint），
+ * 虚拟线程模式下避免无上限的并发请求压垮九天端点或占满数据库连接池；
+ * 响应式调用以退避重试的方式非阻塞等待许可，许可耗尽超过等待时间返回503
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class JiutianHttpClientService {
+
+    public static final String CONFIG_HTTP_VERSION = "httpVersion";
+    public static final String CONFIG_CONNECT_TIMEOUT = "connectTimeoutMs";
+    public static final String CONFIG_READ_TIMEOUT = "readTimeoutMs";
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${app.jiutian.http.version:HTTP_2}")
+    private String defaultHttpVersion;
+
+    @Value("${app.jiutian.http.connect-timeout:5000}")
+    private int defaultConnectTimeoutMs;
+
+    @Value("${app.jiutian.http.read-timeout:180000}")
+    private int defaultReadTimeoutMs;
+
+    @Value("${app.jiutian.max-concurrent-per-endpoint:16}")
+    private int maxConcurrentPerEndpoint;
+
+    @Value("${app.jiutian.acquire-timeout:30000}")
+    private long acquireTimeoutMs;
+
+    private static final Duration PERMIT_RETRY_MIN_BACKOFF = Duration.ofMillis(20);
+    private static final Duration PERMIT_RETRY_MAX_BACKOFF = Duration.ofMillis(500);
+
+    private static final StringDecoder LINE_DECODER = StringDecoder.allMimeTypes();
+    private static final ResolvableType STRING_TYPE = ResolvableType.forClass(String.class);
+
+    // 端点连接池：origin|version|connectTimeout -> EndpointClient
+    private final ConcurrentHashMap<String, EndpointClient> clients = new ConcurrentHashMap<>();
+
+    // 端点并发许可：origin -> Semaphore（同一origin的不同协议配置共享许可）
+    private final ConcurrentHashMap<String, Semaphore> permits = new ConcurrentHashMap<>();
+
+    /**
+     * POST JSON并一次性读取完整响应体（非流式调用）
+     */
+    public HttpResponse<byte[]> postForBytes(String endpoint, Map<String, String> agentConfig,
+                                             String jsonBody, Map<String, String> headers)
+            throws IOException, InterruptedException {
+        EndpointClient endpointClient = getClient(endpoint, agentConfig);
+        HttpRequest request = buildRequest(endpoint, agentConfig, jsonBody, headers);
+
+        acquirePermit(endpointClient);
+        endpointClient.inFlight.incrementAndGet();
+        try {
+            HttpResponse<byte[]> response = endpointClient.client.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            endpointClient.recordResponse(response.version());
+            return response;
+        } catch (IOException | InterruptedException e) {
+            endpointClient.failures.increment();
+            throw e;
+        } finally {
+            endpointClient.release();
+        }
+    }
+
+    /**
+     * POST JSON并以输入流方式读取响应体（流式调用）
+     * 调用方必须关闭返回的UpstreamStream，连接才会归还连接池
+     */
+    public UpstreamStream postForStream(String endpoint, Map<String, String> agentConfig,
+                                        String jsonBody, Map<String, String> headers)
+            throws IOException, InterruptedException {
+        EndpointClient endpointClient = getClient(endpoint, agentConfig);
+        HttpRequest request = buildRequest(endpoint, agentConfig, jsonBody, headers);
+
+        acquirePermit(endpointClient);
+        endpointClient.inFlight.incrementAndGet();
+        try {
+            HttpResponse<InputStream> response = endpointClient.client.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            endpointClient.recordResponse(response.version());
+            return new UpstreamStream(response.statusCode(), response.version(), response.body(), endpointClient::release);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            endpointClient.release();
+            endpointClient.failures.increment();
+            throw e;
+        }
+    }
+
+    /**
+     * POST JSON并以非阻塞方式逐行读取流式响应体
+     * 复用同一端点连接池，订阅期间不占用线程；非2xx状态以WebClientResponseException结束
+     */
+    public Flux<String> streamLines(String endpoint, Map<String, String> agentConfig,
+                                    String jsonBody, Map<String, String> headers) {
+        EndpointClient endpointClient = getClient(endpoint, agentConfig);
+        int readTimeoutMs = resolveInt(agentConfig, CONFIG_READ_TIMEOUT, defaultReadTimeoutMs);
+
+        Flux<DataBuffer> body = endpointClient.webClient.post()
+                .uri(URI.create(endpoint))
+                .headers(httpHeaders -> {
+                    if (headers != null) {
+                        headers.forEach(httpHeaders::set);
+                    }
+                })
+                .bodyValue(jsonBody)
+                .exchangeToFlux(response -> {
+                    if (response.statusCode().is2xxSuccessful()) {
+                        return response.bodyToFlux(DataBuffer.class);
+                    }
+                    return response.createException().flatMapMany(Mono::error);
+                });
+
+        // 非阻塞等待并发许可：tryAcquire失败时按退避间隔重试，等待期间不占用线程
+        Mono<EndpointClient> permit = Mono.defer(() -> {
+            long deadline = System.currentTimeMillis() + acquireTimeoutMs;
+            return Mono.fromCallable(() -> tryAcquirePermit(endpointClient, deadline))
+                    .retryWhen(Retry.backoff(Long.MAX_VALUE, PERMIT_RETRY_MIN_BACKOFF)
+                            .maxBackoff(PERMIT_RETRY_MAX_BACKOFF)
+                            .filter(PermitUnavailableException.class::isInstance));
+        });
+
+        return permit.flatMapMany(client -> LINE_DECODER.decode(body, STRING_TYPE, null, null)
+                .timeout(Duration.ofMillis(readTimeoutMs))
+                .doOnError(e -> {
+                    if (!(e instanceof WebClientResponseException)) {
+                        client.failures.increment();
+                    }
+                })
+                .doFinally(signal -> client.release()));
+    }
+
+    private EndpointClient getClient(String endpoint, Map<String, String> agentConfig) {
+        URI uri = URI.create(endpoint);
+        String origin = uri.getScheme() + "://" + uri.getAuthority();
+        HttpClient.Version version = resolveVersion(agentConfig);
+        int connectTimeoutMs = resolveInt(agentConfig, CONFIG_CONNECT_TIMEOUT, defaultConnectTimeoutMs);
+
+        String key = origin + "|" + version + "|" + connectTimeoutMs;
+        return clients.computeIfAbsent(key, k -> createClient(origin, version, connectTimeoutMs));
+    }
+
+    private EndpointClient createClient(String origin, HttpClient.Version version, int connectTimeoutMs) {
+        log.info("Creating pooled Jiutian HTTP client for {} ({}, connectTimeout={}ms)", origin, version, connectTimeoutMs);
+
+        HttpClient client = HttpClient.newBuilder()
+                .version(version)
+                .connectTimeout(Duration.ofMillis(connectTimeoutMs))
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build();
+
+        Semaphore endpointPermits = permits.computeIfAbsent(origin, o -> {
+            Semaphore semaphore = new Semaphore(maxConcurrentPerEndpoint);
+            Gauge.builder("jiutian.http.client.permits.available", semaphore, Semaphore::availablePermits)
+                    .description("九天上游端点剩余并发许可数")
+                    .tag("endpoint", o)
+                    .register(meterRegistry);
+            return semaphore;
+        });
+
+        EndpointClient endpointClient = new EndpointClient(client, origin, endpointPermits, meterRegistry);
+        Gauge.builder("jiutian.http.client.in_flight", endpointClient.inFlight, AtomicInteger::get)
+                .description("正在进行中的九天上游请求数（含未关闭的流）")
+                .tag("endpoint", origin)
+                .tag("version", version.name())
+                .tag("connect_timeout_ms", String.valueOf(connectTimeoutMs))
+                .register(meterRegistry);
+        return endpointClient;
+    }
+
+    private void acquirePermit(EndpointClient endpointClient) throws InterruptedException {
+        if (!endpointClient.permits.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS)) {
+            throw saturated(endpointClient);
+        }
+    }
+
+    /**
+     * 非阻塞获取许可：成功时计入进行中请求；暂无许可时抛出PermitUnavailableException由调用方重试，超过截止时间则拒绝
+     */
+    private EndpointClient tryAcquirePermit(EndpointClient endpointClient, long deadline) {
+        if (endpointClient.permits.tryAcquire()) {
+            endpointClient.inFlight.incrementAndGet();
+            return endpointClient;
+        }
+        if (System.currentTimeMillis() >= deadline) {
+            throw saturated(endpointClient);
+        }
+        throw PermitUnavailableException.INSTANCE;
+    }
+
+    private BusinessException saturated(EndpointClient endpointClient) {
+        endpointClient.rejections.increment();
+        log.warn("Jiutian endpoint {} is saturated ({} concurrent requests)", endpointClient.origin, maxConcurrentPerEndpoint);
+        return BusinessException.serviceUnavailable("智能体请求繁忙，请稍后再试。");
+    }
+
+    private HttpRequest buildRequest(String endpoint, Map<String, String> agentConfig,
+                                     String jsonBody, Map<String, String> headers) {
+        int readTimeoutMs = resolveInt(agentConfig, CONFIG_READ_TIMEOUT, defaultReadTimeoutMs);
+
+        HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(endpoint))
+                .timeout(Duration.ofMillis(readTimeoutMs))
+                .POST(HttpRequest.BodyPublishers.ofString(jsonBody, StandardCharsets.UTF_8));
+        if (headers != null) {
+            headers.forEach(builder::header);
+        }
+        return builder.build();
+    }
+
+    private HttpClient.Version resolveVersion(Map<String, String> agentConfig) {
+        String version = agentConfig != null && agentConfig.get(CONFIG_HTTP_VERSION) != null
+                ? agentConfig.get(CONFIG_HTTP_VERSION) : defaultHttpVersion;
+        try {
+            return HttpClient.Version.valueOf(version.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            log.warn("Unknown http version '{}', falling back to HTTP_2", version);
+            return HttpClient.Version.HTTP_2;
+        }
+    }
+
+    private int resolveInt(Map<String, String> agentConfig, String key, int defaultValue) {
+        if (agentConfig != null && agentConfig.get(key) != null) {
+            try {
+                return Integer.parseInt(agentConfig.get(key).trim());
+            } catch (NumberFormatException e) {
+                log.warn("Invalid agent config {}={}, using default {}", key, agentConfig.get(key), defaultValue);
+            }
+        }
+        return defaultValue;
+    }
+
+    /**
+     * 单个端点的连接池及其指标
+     */
+    private static class EndpointClient {
+        private final HttpClient client;
+        private final WebClient webClient;
+        private final String origin;
+        private final Semaphore permits;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final Counter http2Responses;
+        private final Counter http11Responses;
+        private final Counter failures;
+        private final Counter rejections;
+
+        EndpointClient(HttpClient client, String origin, Semaphore permits, MeterRegistry meterRegistry) {
+            this.client = client;
+            this.origin = origin;
+            this.permits = permits;
+            // WebClient共享同一个JDK HttpClient，阻塞调用与响应式调用使用同一连接池
+            this.webClient = WebClient.builder()
+                    .clientConnector(new JdkClientHttpConnector(client))
+                    .build();
+            this.http2Responses = Counter.builder("jiutian.http.client.responses")
+                    .tag("endpoint", origin).tag("protocol", "HTTP_2").register(meterRegistry);
+            this.http11Responses = Counter.builder("jiutian.http.client.responses")
+                    .tag("endpoint", origin).tag("protocol", "HTTP_1_1").register(meterRegistry);
+            this.failures = Counter.builder("jiutian.http.client.failures")
+                    .tag("endpoint", origin).register(meterRegistry);
+            this.rejections = Counter.builder("jiutian.http.client.rejections")
+                    .tag("endpoint", origin).register(meterRegistry);
+        }
+
+        /**
+         * 请求结束：归还并发许可
+         */
+        void release() {
+            inFlight.decrementAndGet();
+            permits.release();
+        }
+
+        void recordResponse(HttpClient.Version version) {
+            if (version == HttpClient.Version.HTTP_2) {
+                http2Responses.increment();
+            } else {
+                http11Responses.increment();
+            }
+        }
+    }
+
+    /**
+     * 暂无并发许可（内部重试信号，不填充堆栈）
+     */
+    private static final class PermitUnavailableException extends RuntimeException {
+        private static final PermitUnavailableException INSTANCE = new PermitUnavailableException();
+
+        private PermitUnavailableException() {
+            super("permit unavailable", null, false, false);
+        }
+    }
+
+    /**
+     * 上游流式响应
+     */
+    public static class UpstreamStream implements AutoCloseable {
+        private final int statusCode;
+        private final HttpClient.Version version;
+        private final InputStream body;
+
+        UpstreamStream(int statusCode, HttpClient.Version version, InputStream body, Runnable onClose) {
+            this.statusCode = statusCode;
+            this.version = version;
+            this.body = new FilterInputStream(body) {
+                private boolean closed;
+
+                @Override
+                public void close() throws IOException {
+                    if (!closed) {
+                        closed = true;
+                        onClose.run();
+                    }
+                    super.close();
+                }
+            };
+        }
+
+        public int getStatusCode() {
+            return statusCode;
+        }
+
+        public HttpClient.Version getVersion() {
+            return version;
+        }
+
+        public InputStream getBody() {
+            return body;
+        }
+
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+}
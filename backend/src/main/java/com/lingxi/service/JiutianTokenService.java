@@ -3,29 +3,50 @@ package com.lingxi.service;
 import com.lingxi.util.JiutianTokenUtil;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
 import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * 九天平台Token管理服务
  * 负责Token的生成、缓存、自动刷新
+ *
+ * 读路径无锁：缓存条目不可变，过期和刷新时间在生成时预先计算。
+ * 定时任务在过期前提前刷新（app.jiutian.token.refresh-ahead），聊天请求不需要等待生成Token；
+ * 同一apiKey的并发生成通过进行中的CompletableFuture合并为一次。
+ * 超过一个Token有效期未被使用的apiKey（如已删除或更换密钥的智能体）不再提前刷新，过期后移出缓存
  */
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class JiutianTokenService {
 
+    // Token有效期（与JiutianTokenUtil一致）
+    private static final long TOKEN_VALIDITY_SECONDS = 3600;
+
+    // 剩余有效期少于该值时请求路径视为需要刷新
+    private static final long REFRESH_THRESHOLD_SECONDS = 300;
+
     private final JiutianTokenUtil tokenUtil;
+
+    @Value("${app.jiutian.token.refresh-ahead:600}")
+    private long refreshAheadSeconds;
     
     // Token缓存：apiKey -> TokenCache
     private final ConcurrentHashMap<String, TokenCache> tokenCache = new ConcurrentHashMap<>();
     
-    // 锁映射：apiKey -> Lock
-    private final ConcurrentHashMap<String, ReentrantLock> lockMap = new ConcurrentHashMap<>();
+    // 最近一次使用时间：apiKey -> 秒级时间戳（只用于判断闲置）
+    // 读路径只在已有条目上做volatile写，不对映射加锁
+    private final ConcurrentHashMap<String, AtomicLong> lastAccess = new ConcurrentHashMap<>();
+    
+    // 进行中的Token生成：apiKey -> Future（单飞）
+    private final ConcurrentHashMap<String, CompletableFuture<TokenCache>> inFlight = new ConcurrentHashMap<>();
 
     /**
      * 获取有效的Token
@@ -39,40 +60,18 @@ public class JiutianTokenService {
             throw new IllegalArgumentException("API Key不能为空");
         }
 
-        // 获取或创建锁
-        ReentrantLock lock = lockMap.computeIfAbsent(apiKey, k -> new ReentrantLock());
-        
-        lock.lock();
+        touch(apiKey);
+        TokenCache cache = tokenCache.get(apiKey);
+        if (cache != null && !cache.shouldRefresh()) {
+            return cache.getToken();
+        }
+
         try {
-            TokenCache cache = tokenCache.get(apiKey);
-            
-            // 检查缓存的Token是否有效
-            if (cache != null && cache.isValid()) {
-                String[] parts = apiKey.split("\\.", 2);
-                String secret = parts.length > 1 ? parts[1] : "";
-                if (!tokenUtil.shouldRefreshToken(cache.getToken(), secret)) {
-                    log.debug("Using cached token for API key: {}", getMaskedApiKey(apiKey));
-                    return cache.getToken();
-                }
-            }
-            
-            // 生成新Token
             log.info("Generating new token for API key: {}", getMaskedApiKey(apiKey));
-            String[] parts = apiKey.split("\\.", 2);
-            String secret = parts.length > 1 ? parts[1] : "";
-            String newToken = tokenUtil.generateToken(apiKey, secret);
-            
-            // 缓存新Token
-            long expirationTime = Instant.now().getEpochSecond() + 3600; // 1小时后过期
-            tokenCache.put(apiKey, new TokenCache(newToken, expirationTime));
-            
-            return newToken;
-            
+            return generate(apiKey, cache).getToken();
         } catch (Exception e) {
             log.error("Failed to get valid token for API key: {}", getMaskedApiKey(apiKey), e);
-            throw new RuntimeException("获取Token失败: " + e.getMessage());
-        } finally {
-            lock.unlock();
+            throw new RuntimeException("获取Token失败: " + rootMessage(e));
         }
     }
 
@@ -87,34 +86,94 @@ public class JiutianTokenService {
             throw new IllegalArgumentException("API Key不能为空");
         }
 
-        ReentrantLock lock = lockMap.computeIfAbsent(apiKey, k -> new ReentrantLock());
-        
-        lock.lock();
+        touch(apiKey);
         try {
             log.info("Force refreshing token for API key: {}", getMaskedApiKey(apiKey));
-            
-            // 移除旧缓存
-            tokenCache.remove(apiKey);
-            
-            // 生成新Token
-            String[] parts = apiKey.split("\\.", 2);
-            String secret = parts.length > 1 ? parts[1] : "";
-            String newToken = tokenUtil.generateToken(apiKey, secret);
-            
-            // 缓存新Token
-            long expirationTime = Instant.now().getEpochSecond() + 3600;
-            tokenCache.put(apiKey, new TokenCache(newToken, expirationTime));
-            
-            return newToken;
-            
+            return generate(apiKey, tokenCache.get(apiKey)).getToken();
         } catch (Exception e) {
             log.error("Failed to refresh token for API key: {}", getMaskedApiKey(apiKey), e);
-            throw new RuntimeException("刷新Token失败: " + e.getMessage());
+            throw new RuntimeException("刷新Token失败: " + rootMessage(e));
+        }
+    }
+
+    /**
+     * 生成并缓存新Token；同一apiKey已有生成在进行时等待其结果
+     *
+     * @param stale 调用方看到的旧条目，缓存已被其他线程替换时直接返回新条目
+     */
+    private TokenCache generate(String apiKey, TokenCache stale) {
+        TokenCache current = tokenCache.get(apiKey);
+        if (current != null && current != stale && !current.shouldRefresh()) {
+            return current;
+        }
+
+        CompletableFuture<TokenCache> future = new CompletableFuture<>();
+        CompletableFuture<TokenCache> existing = inFlight.putIfAbsent(apiKey, future);
+        if (existing != null) {
+            return existing.join();
+        }
+
+        try {
+            long now = Instant.now().getEpochSecond();
+            TokenCache created = new TokenCache(tokenUtil.generateToken(apiKey), now + TOKEN_VALIDITY_SECONDS, now);
+            tokenCache.put(apiKey, created);
+            future.complete(created);
+            return created;
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            throw e;
         } finally {
-            lock.unlock();
+            inFlight.remove(apiKey, future);
+        }
+    }
+
+    /**
+     * 提前刷新即将过期的Token，闲置的apiKey不刷新
+     * 每分钟执行一次
+     */
+    @Scheduled(fixedRate = 60000)
+    public void refreshExpiringTokens() {
+        long now = Instant.now().getEpochSecond();
+        long refreshBefore = now + refreshAheadSeconds;
+        tokenCache.forEach((apiKey, cache) -> {
+            if (cache.getExpirationTime() <= refreshBefore && !isIdle(apiKey, now)) {
+                try {
+                    generate(apiKey, cache);
+                    log.debug("Proactively refreshed token for API key: {}", getMaskedApiKey(apiKey));
+                } catch (Exception e) {
+                    log.warn("Proactive token refresh failed for API key: {}", getMaskedApiKey(apiKey), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * 超过一个Token有效期未被使用
+     */
+    private boolean isIdle(String apiKey, long now) {
+        AtomicLong accessed = lastAccess.get(apiKey);
+        return accessed == null || accessed.get() < now - TOKEN_VALIDITY_SECONDS;
+    }
+
+    /**
+     * 记录使用时间：已有条目只在秒数变化时写入，首次使用才插入映射
+     */
+    private void touch(String apiKey) {
+        long now = Instant.now().getEpochSecond();
+        AtomicLong accessed = lastAccess.get(apiKey);
+        if (accessed == null) {
+            accessed = lastAccess.computeIfAbsent(apiKey, key -> new AtomicLong());
+        }
+        if (accessed.get() != now) {
+            accessed.lazySet(now);
         }
     }
 
+    private String rootMessage(Exception e) {
+        Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+        return cause.getMessage();
+    }
+
     /**
      * 检查Token是否需要刷新
      * 
@@ -150,6 +209,7 @@ public class JiutianTokenService {
      */
     public void clearTokenCache(String apiKey) {
         tokenCache.remove(apiKey);
+        lastAccess.remove(apiKey);
         log.info("Cleared token cache for API key: {}", getMaskedApiKey(apiKey));
     }
 
@@ -159,11 +219,12 @@ public class JiutianTokenService {
     public void clearAllTokenCache() {
         int size = tokenCache.size();
         tokenCache.clear();
+        lastAccess.clear();
         log.info("Cleared all token cache, {} entries removed", size);
     }
 
     /**
-     * 定时清理过期Token缓存
+     * 定时清理过期Token缓存，以及已闲置的apiKey
      * 每5分钟执行一次
      */
     @Scheduled(fixedRate = 300000) // 5分钟
@@ -173,11 +234,13 @@ public class JiutianTokenService {
         
         for (String apiKey : tokenCache.keySet()) {
             TokenCache cache = tokenCache.get(apiKey);
-            if (cache != null && cache.getExpirationTime() <= currentTime) {
-                tokenCache.remove(apiKey);
+            if (cache != null && (cache.getExpirationTime() <= currentTime || isIdle(apiKey, currentTime))
+                    && tokenCache.remove(apiKey, cache)) {
                 removedCount++;
             }
         }
+        // 缓存中已没有Token的apiKey不再保留使用时间
+        lastAccess.keySet().removeIf(apiKey -> !tokenCache.containsKey(apiKey) && isIdle(apiKey, currentTime));
         
         if (removedCount > 0) {
             log.info("Cleaned up {} expired tokens", removedCount);
@@ -219,17 +282,19 @@ public class JiutianTokenService {
     }
 
     /**
-     * Token缓存类
+     * Token缓存类（不可变，刷新时整体替换）
      */
     private static class TokenCache {
         private final String token;
         private final long expirationTime;
+        private final long refreshTime;
         private final long createdTime;
 
-        public TokenCache(String token, long expirationTime) {
+        public TokenCache(String token, long expirationTime, long createdTime) {
             this.token = token;
             this.expirationTime = expirationTime;
-            this.createdTime = Instant.now().getEpochSecond();
+            this.refreshTime = expirationTime - REFRESH_THRESHOLD_SECONDS;
+            this.createdTime = createdTime;
         }
 
         public String getToken() {
@@ -245,8 +310,7 @@ public class JiutianTokenService {
         }
 
         public boolean shouldRefresh() {
-            long currentTime = Instant.now().getEpochSecond();
-            return (expirationTime - currentTime) < 300; // 5分钟内过期需要刷新
+            return Instant.now().getEpochSecond() >= refreshTime; // 5分钟内过期需要刷新
         }
 
         public long getRemainingTime() {
@@ -0,0 +1,257 @@
+package com.lingxi.service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 令牌桶限流服务
+ * local：进程内令牌桶，CAS更新不加锁，适用于单节点
+ * redis：Lua脚本在Redis中原子更新令牌桶（使用Redis服务器时间），多节点共享额度；
+ *        Redis不可用时退化为进程内令牌桶
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class RateLimiterService {
+
+    public static final String SCOPE_USER = "user";
+    public static final String SCOPE_AGENT = "agent";
+
+    private static final String KEY_PREFIX = "ratelimit:";
+
+    /**
+     * KEYS[i]=第i个桶key，ARGV[2i-1]=容量，ARGV[2i]=补满周期（毫秒）
+     * 所有桶都有令牌时各扣一个并返回0，否则都不扣，返回各桶需要等待的毫秒数中的最大值
+     */
+    private static final DefaultRedisScript<Long> TOKEN_BUCKET_SCRIPT = new DefaultRedisScript<>(
+            "local t = redis.call('TIME') " +
+            "local now = tonumber(t[1]) * 1000 + math.floor(tonumber(t[2]) / 1000) " +
+            "local tokens = {} " +
+            "local wait = 0 " +
+            "for i = 1, #KEYS do " +
+            "  local capacity = tonumber(ARGV[2 * i - 1]) " +
+            "  local period = tonumber(ARGV[2 * i]) " +
+            "  local state = redis.call('HMGET', KEYS[i], 'tokens', 'ts') " +
+            "  local tk = tonumber(state[1]) " +
+            "  local ts = tonumber(state[2]) " +
+            "  if tk == nil then tk = capacity; ts = now end " +
+            "  tk = math.min(capacity, tk + (now - ts) * capacity / period) " +
+            "  if tk < 1 then wait = math.max(wait, math.ceil((1 - tk) * period / capacity)) end " +
+            "  tokens[i] = tk " +
+            "end " +
+            "for i = 1, #KEYS do " +
+            "  if wait == 0 then tokens[i] = tokens[i] - 1 end " +
+            "  redis.call('HSET', KEYS[i], 'tokens', tostring(tokens[i]), 'ts', tostring(now)) " +
+            "  redis.call('PEXPIRE', KEYS[i], ARGV[2 * i]) " +
+            "end " +
+            "return wait", Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${app.security.rate-limit.backend:local}")
+    private String backend;
+
+    private final ConcurrentHashMap<String, TokenBucket> localBuckets = new ConcurrentHashMap<>();
+    private final Map<String, Counter> decisionCounters = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("rate.limit.local.buckets", localBuckets, Map::size)
+                .description("进程内令牌桶数量")
+                .register(meterRegistry);
+        log.info("Rate limiter backend: {}", backend);
+    }
+
+    /**
+     * 尝试从令牌桶中获取一个令牌
+     *
+     * @param scope    限流范围（user/agent），用于指标
+     * @param key      桶标识
+     * @param capacity 容量（周期内允许的请求数）
+     * @param periodMs 补满周期（毫秒）
+     * @return 0表示放行，否则为建议等待的毫秒数
+     */
+    public long tryAcquire(String scope, String key, long capacity, long periodMs) {
+        return tryAcquireAll(scope, key, List.of(new Limit(capacity, periodMs)));
+    }
+
+    /**
+     * 同一主体的多个令牌桶（如每分钟和每小时）：全部有令牌时才各扣一个，任一不足则都不扣
+     *
+     * @return 0表示放行，否则为各桶建议等待时间的最大值（毫秒）
+     */
+    public long tryAcquireAll(String scope, String key, List<Limit> limits) {
+        List<Limit> effective = limits.stream().filter(limit -> limit.capacity > 0).toList();
+        if (effective.isEmpty()) {
+            return 0;
+        }
+        // 同一主体的桶使用相同的hash tag，Redis Cluster下落在同一slot，可在一个脚本中原子处理
+        List<String> bucketKeys = effective.stream()
+                .map(limit -> KEY_PREFIX + "{" + key + "}:" + limit.capacity + "/" + limit.periodMs)
+                .toList();
+        long waitMs = "redis".equalsIgnoreCase(backend)
+                ? tryAcquireRedis(bucketKeys, effective)
+                : tryAcquireLocal(bucketKeys, effective);
+        decisionCounter(scope, waitMs == 0 ? "allowed" : "rejected").increment();
+        return waitMs;
+    }
+
+    private long tryAcquireRedis(List<String> bucketKeys, List<Limit> limits) {
+        try {
+            Object[] args = new Object[limits.size() * 2];
+            for (int i = 0; i < limits.size(); i++) {
+                args[2 * i] = String.valueOf(limits.get(i).capacity);
+                args[2 * i + 1] = String.valueOf(limits.get(i).periodMs);
+            }
+            Long waitMs = stringRedisTemplate.execute(TOKEN_BUCKET_SCRIPT, bucketKeys, args);
+            return waitMs != null ? waitMs : 0;
+        } catch (Exception e) {
+            log.warn("Redis rate limiter unavailable, using local bucket: {}", e.getMessage());
+            return tryAcquireLocal(bucketKeys, limits);
+        }
+    }
+
+    private long tryAcquireLocal(List<String> bucketKeys, List<Limit> limits) {
+        List<TokenBucket> buckets = new ArrayList<>(limits.size());
+        long waitMs = 0;
+        long now = System.nanoTime();
+        for (int i = 0; i < limits.size(); i++) {
+            Limit limit = limits.get(i);
+            TokenBucket bucket = localBuckets.computeIfAbsent(bucketKeys.get(i), k -> new TokenBucket(limit.capacity, limit.periodMs));
+            buckets.add(bucket);
+            waitMs = Math.max(waitMs, bucket.waitMs(now));
+        }
+        if (waitMs > 0) {
+            return waitMs;
+        }
+        for (int i = 0; i < buckets.size(); i++) {
+            waitMs = buckets.get(i).tryAcquire();
+            if (waitMs > 0) {
+                // 检查之后被并发请求取走，退回已扣的令牌
+                for (int j = 0; j < i; j++) {
+                    buckets.get(j).refund();
+                }
+                return waitMs;
+            }
+        }
+        return 0;
+    }
+
+    private Counter decisionCounter(String scope, String outcome) {
+        return decisionCounters.computeIfAbsent(scope + "|" + outcome, k -> Counter.builder("rate.limit.decisions")
+                .description("限流判定次数")
+                .tag("scope", scope)
+                .tag("outcome", outcome)
+                .register(meterRegistry));
+    }
+
+    /**
+     * 清理已补满的进程内令牌桶（补满即等同于新建）
+     */
+    @Scheduled(fixedRate = 300000) // 每5分钟执行一次
+    public void cleanupLocalBuckets() {
+        long now = System.nanoTime();
+        localBuckets.values().removeIf(bucket -> bucket.isFull(now));
+    }
+
+    /**
+     * 进程内令牌桶，状态为不可变快照，通过CAS替换
+     */
+    private static class TokenBucket {
+        private final double capacity;
+        private final double tokensPerNano;
+        private final AtomicReference<State> state;
+
+        TokenBucket(long capacity, long periodMs) {
+            this.capacity = capacity;
+            this.tokensPerNano = (double) capacity / (periodMs * 1_000_000L);
+            this.state = new AtomicReference<>(new State(capacity, System.nanoTime()));
+        }
+
+        long tryAcquire() {
+            while (true) {
+                long now = System.nanoTime();
+                State current = state.get();
+                double tokens = refill(current, now);
+                if (tokens < 1) {
+                    return waitMs(tokens);
+                }
+                if (state.compareAndSet(current, new State(tokens - 1, now))) {
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * 不扣令牌，只计算需要等待的毫秒数（0表示当前有令牌）
+         */
+        long waitMs(long now) {
+            double tokens = refill(state.get(), now);
+            return tokens < 1 ? waitMs(tokens) : 0;
+        }
+
+        /**
+         * 退回一个令牌
+         */
+        void refund() {
+            while (true) {
+                long now = System.nanoTime();
+                State current = state.get();
+                if (state.compareAndSet(current, new State(Math.min(capacity, refill(current, now) + 1), now))) {
+                    return;
+                }
+            }
+        }
+
+        private long waitMs(double tokens) {
+            return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano / 1_000_000L));
+        }
+
+        boolean isFull(long now) {
+            return refill(state.get(), now) >= capacity;
+        }
+
+        private double refill(State current, long now) {
+            return Math.min(capacity, current.tokens + (now - current.timestamp) * tokensPerNano);
+        }
+    }
+
+    /**
+     * 令牌桶参数：容量（周期内允许的请求数）和补满周期（毫秒）
+     */
+    public static class Limit {
+        private final long capacity;
+        private final long periodMs;
+
+        public Limit(long capacity, long periodMs) {
+            this.capacity = capacity;
+            this.periodMs = periodMs;
+        }
+    }
+
+    private static class State {
+        private final double tokens;
+        private final long timestamp;
+
+        State(double tokens, long timestamp) {
+            this.tokens = tokens;
+            this.timestamp = timestamp;
+        }
+    }
+}
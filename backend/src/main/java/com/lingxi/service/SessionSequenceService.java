@@ -0,0 +1,116 @@
+package com.lingxi.service;
+
+import com.lingxi.repository.ChatHistoryRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 会话消息序号分配服务
+ * 使用Redis INCR原子分配序号，多节点写同一会话时不会重复；
+ * 计数器不存在（首次使用或已过期）时从数据库MAX(sequence_number)初始化。
+ * Redis不可用时退化为本地计数器（仅保证单节点内不重复），Redis恢复后以本地计数器为下限对齐
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class SessionSequenceService {
+
+    private static final String KEY_PREFIX = "chat:seq:";
+
+    /**
+     * KEYS[1]=计数器key，ARGV[1]=初始值（为空表示未知），ARGV[2]=过期秒数，ARGV[3]=下限（为空表示无）
+     * 计数器不存在且未提供初始值时返回-1，由调用方查询数据库后携带初始值重试；
+     * 计数器小于下限时先提升到下限，保证不与降级期间本地分配的序号重复
+     */
+    private static final DefaultRedisScript<Long> NEXT_SEQUENCE_SCRIPT = new DefaultRedisScript<>(
+            "local cur = redis.call('GET', KEYS[1]) " +
+            "if not cur then " +
+            "  if ARGV[1] == '' then return -1 end " +
+            "  redis.call('SET', KEYS[1], ARGV[1]) " +
+            "elseif ARGV[3] ~= '' and tonumber(cur) < tonumber(ARGV[3]) then " +
+            "  redis.call('SET', KEYS[1], ARGV[3]) " +
+            "end " +
+            "local v = redis.call('INCR', KEYS[1]) " +
+            "redis.call('EXPIRE', KEYS[1], ARGV[2]) " +
+            "return v", Long.class);
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final ChatHistoryRepository chatHistoryRepository;
+
+    @Value("${app.chat.sequence.ttl:86400}")
+    private long counterTtlSeconds;
+
+    // Redis不可用时的本地计数器
+    private final ConcurrentHashMap<String, LocalCounter> localCounters = new ConcurrentHashMap<>();
+
+    /**
+     * 分配会话中的下一个序号
+     */
+    public int next(String sessionId) {
+        if (sessionId == null) {
+            return 1;
+        }
+
+        try {
+            String key = KEY_PREFIX + sessionId;
+            String ttl = String.valueOf(counterTtlSeconds);
+            // 降级期间本地分配过序号时，以本地计数器为下限重新对齐Redis计数器
+            LocalCounter local = localCounters.get(sessionId);
+            String floor = local != null ? String.valueOf(local.current()) : "";
+            Long value = stringRedisTemplate.execute(NEXT_SEQUENCE_SCRIPT, List.of(key), "", ttl, floor);
+            if (value == null || value < 0) {
+                int initial = Math.max(currentMax(sessionId), local != null ? local.current() : 0);
+                value = stringRedisTemplate.execute(NEXT_SEQUENCE_SCRIPT, List.of(key),
+                        String.valueOf(initial), ttl, floor);
+            }
+            if (local != null) {
+                localCounters.remove(sessionId, local);
+            }
+            return value.intValue();
+        } catch (Exception e) {
+            log.warn("Redis sequence allocation failed for session {}, using local counter: {}", sessionId, e.getMessage());
+            return localCounters.computeIfAbsent(sessionId, id -> new LocalCounter(currentMax(id))).next();
+        }
+    }
+
+    private int currentMax(String sessionId) {
+        Integer max = chatHistoryRepository.findMaxSequenceNumber(sessionId);
+        return max != null ? max : 0;
+    }
+
+    /**
+     * 清理长时间未使用的本地计数器
+     */
+    @Scheduled(fixedRate = 600000) // 每10分钟执行一次
+    public void cleanupLocalCounters() {
+        long cutoff = System.currentTimeMillis() - counterTtlSeconds * 1000;
+        localCounters.entrySet().removeIf(entry -> entry.getValue().lastUsed < cutoff);
+    }
+
+    private static class LocalCounter {
+        private final AtomicInteger value;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        LocalCounter(int initial) {
+            this.value = new AtomicInteger(initial);
+        }
+
+        int next() {
+            lastUsed = System.currentTimeMillis();
+            return value.incrementAndGet();
+        }
+
+        int current() {
+            return value.get();
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.lingxi.service;
+
+import com.lingxi.dto.SequencedStreamEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Sinks;
+import reactor.core.scheduler.Schedulers;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 可续传的流式回复
+ * 智能体回复由服务端独立订阅，事件编号后写入按回复划分的环形缓冲区（Reactor replay sink）；
+ * 客户端断线不会立即中断上游调用，重连时携带Last-Event-ID补发缺失事件并继续接收实时事件。
+ * 最后一个订阅者断开后超过宽限期仍无人重连，则取消上游调用，避免为无人接收的回复继续消耗额度。
+ * 取消经由上游链路（takeUntilOther）完成，sink只在上游的串行信号中写入，不会与数据行并发emit。
+ * 回复结束后缓冲区保留一段时间供重连，随后清理
+ */
+@Slf4j
+@Service
+public class StreamReplayService {
+
+    @Value("${app.chat.stream-replay.buffer-size:2048}")
+    private int bufferSize;
+
+    @Value("${app.chat.stream-replay.retention:120000}")
+    private long retentionMs;
+
+    @Value("${app.chat.stream-replay.cancel-grace:15000}")
+    private long cancelGraceMs;
+
+    private final ConcurrentHashMap<String, ReplayableStream> streams = new ConcurrentHashMap<>();
+
+    /**
+     * 开始一个可续传的流，上游立即被订阅
+     *
+     * @return streamId
+     */
+    public String start(Long userId, Flux<SequencedStreamEvent> source) {
+        String streamId = UUID.randomUUID().toString();
+        ReplayableStream stream = new ReplayableStream(userId, Sinks.many().replay().limit(bufferSize));
+        streams.put(streamId, stream);
+
+        source
+                .takeUntilOther(stream.cancelled.asMono())
+                .subscribe(
+                        event -> stream.sink.tryEmitNext(new SequencedStreamEvent(
+                                streamId, stream.sequence.incrementAndGet(), event.getEvent(), event.getData())),
+                        error -> {
+                            log.error("Replayable stream {} failed: {}", streamId, error.getMessage());
+                            stream.sink.tryEmitError(error);
+                            stream.finish(retentionMs);
+                        },
+                        () -> {
+                            stream.sink.tryEmitComplete();
+                            stream.finish(retentionMs);
+                        });
+        // 创建后尚无订阅者，按断开处理，订阅方须在宽限期内订阅
+        scheduleCancelIfAbandoned(streamId, stream);
+        return streamId;
+    }
+
+    /**
+     * 订阅流：先补发序号大于lastSeq且仍在缓冲区中的事件，再继续接收实时事件
+     */
+    public Flux<SequencedStreamEvent> resume(String streamId, Long userId, long lastSeq) {
+        ReplayableStream stream = streams.get(streamId);
+        if (stream == null || !stream.userId.equals(userId)) {
+            throw new RuntimeException("回复流不存在或已过期");
+        }
+
+        Flux<SequencedStreamEvent> events = stream.sink.asFlux()
+                .filter(event -> event.getSeq() > lastSeq)
+                .doOnSubscribe(subscription -> stream.subscribers.incrementAndGet())
+                .doFinally(signal -> {
+                    if (stream.subscribers.decrementAndGet() == 0) {
+                        scheduleCancelIfAbandoned(streamId, stream);
+                    }
+                });
+
+        // 缺失的事件已被环形缓冲区淘汰，提示客户端以最终的完整回复为准
+        long oldestRetained = stream.sequence.get() - bufferSize + 1;
+        if (lastSeq + 1 < oldestRetained) {
+            return Flux.concat(
+                    Flux.just(new SequencedStreamEvent(streamId, lastSeq, "resume_gap",
+                            Map.of("message", "部分内容已过期，完整回复将在结束时下发"))),
+                    events);
+        }
+        return events;
+    }
+
+    /**
+     * 宽限期后仍无订阅者且回复未结束，则取消上游
+     */
+    private void scheduleCancelIfAbandoned(String streamId, ReplayableStream stream) {
+        Schedulers.parallel().schedule(() -> {
+            if (stream.subscribers.get() == 0 && !stream.isFinished()) {
+                log.info("Cancelling abandoned reply stream {}", streamId);
+                // 上游被取消后由完成回调结束sink，与数据行的emit在同一串行链路上
+                stream.cancelled.tryEmitValue(Boolean.TRUE);
+            }
+        }, cancelGraceMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 清理已结束且超过保留时间的流
+     */
+    @Scheduled(fixedRate = 30000)
+    public void cleanupExpiredStreams() {
+        long now = System.currentTimeMillis();
+        streams.values().removeIf(stream -> stream.expiresAt <= now);
+    }
+
+    private static class ReplayableStream {
+        private final Long userId;
+        private final Sinks.Many<SequencedStreamEvent> sink;
+        private final AtomicLong sequence = new AtomicLong();
+        private final AtomicInteger subscribers = new AtomicInteger();
+        private final Sinks.One<Boolean> cancelled = Sinks.one();
+        private volatile long expiresAt = Long.MAX_VALUE;
+
+        ReplayableStream(Long userId, Sinks.Many<SequencedStreamEvent> sink) {
+            this.userId = userId;
+            this.sink = sink;
+        }
+
+        void finish(long retentionMs) {
+            expiresAt = System.currentTimeMillis() + retentionMs;
+        }
+
+        boolean isFinished() {
+            return expiresAt != Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.lingxi.service;
+
+import com.lingxi.util.JwtUtil;
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.core.Cursor;
+import org.springframework.data.redis.core.ScanOptions;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * JWT吊销服务
+ * 吊销记录以令牌哈希为键存入Redis，过期时间等于令牌剩余有效期；
+ * 每个节点维护本地布隆过滤器，通过Redis发布/订阅同步新增吊销，启动及定时按SCAN重建。
+ * 布隆过滤器判定不存在的令牌（绝大多数请求）无需访问Redis
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class TokenRevocationService {
+
+    private static final String KEY_PREFIX = "jwt:revoked:";
+    private static final String CHANNEL = "jwt:revocations";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+    private final JwtUtil jwtUtil;
+
+    @Value("${app.jwt.revocation.expected-insertions:100000}")
+    private int expectedInsertions;
+
+    @Value("${app.jwt.revocation.false-positive-rate:0.01}")
+    private double falsePositiveRate;
+
+    @Value("${app.jwt.revocation.fail-open:false}")
+    private boolean failOpen;
+
+    private volatile BloomFilter bloomFilter;
+
+    // 已确认吊销的令牌哈希 -> 过期时间（本节点吊销、收到广播或查询Redis命中），Redis不可用时仍能拒绝
+    private final ConcurrentHashMap<String, Long> confirmedRevocations = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        bloomFilter = new BloomFilter(expectedInsertions, falsePositiveRate);
+        // 消息格式：令牌哈希|过期时间戳（毫秒）
+        listenerContainer.addMessageListener((message, pattern) -> {
+            String[] parts = new String(message.getBody(), StandardCharsets.UTF_8).split("\\|");
+            try {
+                markRevoked(parts[0], Long.parseLong(parts[1]));
+            } catch (RuntimeException e) {
+                log.warn("Ignoring malformed token revocation message: {}", e.getMessage());
+            }
+        }, new ChannelTopic(CHANNEL));
+        rebuildBloomFilter();
+        if (failOpen) {
+            log.warn("Token revocation is fail-open: revoked tokens may be accepted while Redis is unavailable");
+        }
+    }
+
+    /**
+     * 吊销令牌（登出），有效期为令牌剩余有效时间
+     */
+    public void revoke(String token) {
+        long remainingSeconds = jwtUtil.getTokenRemainingTime(token);
+        if (remainingSeconds <= 0) {
+            return;
+        }
+        String hash = jwtUtil.hashToken(token);
+        long expiresAt = System.currentTimeMillis() + remainingSeconds * 1000;
+        markRevoked(hash, expiresAt);
+
+        try {
+            stringRedisTemplate.opsForValue().set(KEY_PREFIX + hash, "1", Duration.ofSeconds(remainingSeconds));
+            stringRedisTemplate.convertAndSend(CHANNEL, hash + "|" + expiresAt);
+        } catch (Exception e) {
+            log.error("Failed to publish token revocation, only effective on this node: {}", e.getMessage());
+        }
+    }
+
+    private void markRevoked(String hash, long expiresAt) {
+        // 先记入confirmedRevocations再写过滤器，与rebuildBloomFilter的“先替换再补入”配合，重建时不会丢失
+        confirmedRevocations.put(hash, expiresAt);
+        bloomFilter.put(hash);
+        jwtUtil.evictVerifiedTokenByHash(hash);
+    }
+
+    /**
+     * 令牌是否已吊销
+     */
+    public boolean isRevoked(String token) {
+        String hash = jwtUtil.hashToken(token);
+        if (!bloomFilter.mightContain(hash)) {
+            return false;
+        }
+
+        Long expiresAt = confirmedRevocations.get(hash);
+        if (expiresAt != null) {
+            return expiresAt > System.currentTimeMillis();
+        }
+
+        try {
+            Long ttlMillis = stringRedisTemplate.getExpire(KEY_PREFIX + hash, TimeUnit.MILLISECONDS);
+            if (ttlMillis != null && ttlMillis > 0) {
+                confirmedRevocations.put(hash, System.currentTimeMillis() + ttlMillis);
+                return true;
+            }
+            return false;
+        } catch (Exception e) {
+            // Redis不可用时默认按已吊销处理（fail-closed），保证已吊销令牌不会因Redis故障继续可用；
+            // 布隆过滤器误判的正常令牌会被要求重新登录
+            if (failOpen) {
+                log.warn("Token revocation check unavailable, accepting token by fail-open policy: {}", e.getMessage());
+                return false;
+            }
+            log.warn("Token revocation check unavailable, rejecting token by fail-closed policy: {}", e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * 从Redis重建布隆过滤器，去除已过期的吊销记录
+     */
+    @Scheduled(fixedDelayString = "${app.jwt.revocation.rebuild-interval:3600000}",
+               initialDelayString = "${app.jwt.revocation.rebuild-interval:3600000}")
+    public void rebuildBloomFilter() {
+        BloomFilter rebuilt = new BloomFilter(expectedInsertions, falsePositiveRate);
+        int count = 0;
+        try (Cursor<String> cursor = stringRedisTemplate.scan(
+                ScanOptions.scanOptions().match(KEY_PREFIX + "*").count(1000).build())) {
+            while (cursor.hasNext()) {
+                rebuilt.put(cursor.next().substring(KEY_PREFIX.length()));
+                count++;
+            }
+        } catch (Exception e) {
+            log.warn("Failed to rebuild token revocation filter from Redis: {}", e.getMessage());
+            return;
+        }
+        // 先发布新过滤器再补入本地确认的吊销：替换前并发写入旧过滤器的吊销也会在此补入，
+        // 替换后的markRevoked直接写入新过滤器
+        bloomFilter = rebuilt;
+        confirmedRevocations.keySet().forEach(rebuilt::put);
+        log.info("Token revocation filter rebuilt with {} entries", count);
+    }
+
+    /**
+     * 清理本地已过期的吊销记录
+     */
+    @Scheduled(fixedRate = 300000) // 每5分钟执行一次
+    public void cleanupConfirmedRevocations() {
+        long now = System.currentTimeMillis();
+        confirmedRevocations.values().removeIf(expiresAt -> expiresAt <= now);
+    }
+
+    /**
+     * 布隆过滤器（双重哈希，位数组用AtomicLongArray无锁写入）
+     */
+    private static class BloomFilter {
+        private final AtomicLongArray bits;
+        private final long bitCount;
+        private final int hashCount;
+
+        BloomFilter(int expectedInsertions, double falsePositiveRate) {
+            long m = (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+            this.bits = new AtomicLongArray((int) ((m + 63) / 64));
+            this.bitCount = bits.length() * 64L;
+            this.hashCount = Math.max(1, (int) Math.round((double) m / expectedInsertions * Math.log(2)));
+        }
+
+        void put(String hash) {
+            long[] h = baseHashes(hash);
+            for (int i = 0; i < hashCount; i++) {
+                long index = Math.floorMod(h[0] + i * h[1], bitCount);
+                int word = (int) (index >>> 6);
+                long mask = 1L << (index & 63);
+                long current;
+                do {
+                    current = bits.get(word);
+                    if ((current & mask) != 0) {
+                        break;
+                    }
+                } while (!bits.compareAndSet(word, current, current | mask));
+            }
+        }
+
+        boolean mightContain(String hash) {
+            long[] h = baseHashes(hash);
+            for (int i = 0; i < hashCount; i++) {
+                long index = Math.floorMod(h[0] + i * h[1], bitCount);
+                if ((bits.get((int) (index >>> 6)) & (1L << (index & 63))) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 令牌哈希本身即SHA-256摘要，直接取前16字节作为两个基础哈希
+         */
+        private long[] baseHashes(String hash) {
+            ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(hash));
+            return new long[]{buffer.getLong(), buffer.getLong() | 1L};
+        }
+    }
+}
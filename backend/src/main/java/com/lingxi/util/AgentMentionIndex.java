@@ -0,0 +1,147 @@
+package com.lingxi.util;
+
+import com.lingxi.entity.Agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 智能体提及（@名称）匹配索引
+ * 以智能体名称和显示名称构建字典树，从每个@处沿树向后匹配最长的已知名称，一次扫描得到提及的智能体。
+ * 提及必须以@开头，因此无需Aho-Corasick的失配指针；子节点为有序char数组，匹配过程不按字符分配对象。
+ * 英文字母大小写不敏感；以英文字母或数字结尾的名称后面不能紧跟英文字母、数字、下划线或连字符
+ */
+public final class AgentMentionIndex {
+
+    private final Node root;
+
+    private AgentMentionIndex(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * 由智能体列表构建索引，名称冲突时先出现的智能体优先
+     */
+    public static AgentMentionIndex build(List<Agent> agents) {
+        BuilderNode root = new BuilderNode();
+        for (Agent agent : agents) {
+            insert(root, agent.getName(), agent);
+            insert(root, agent.getDisplayName(), agent);
+        }
+        return new AgentMentionIndex(root.freeze());
+    }
+
+    /**
+     * 按出现顺序返回消息中提及的智能体（去重）
+     */
+    public List<Agent> match(String content) {
+        if (content == null || content.indexOf('@') < 0) {
+            return Collections.emptyList();
+        }
+        List<Agent> matched = new ArrayList<>(2);
+        int length = content.length();
+        for (int i = 0; i < length; i++) {
+            if (content.charAt(i) != '@' || (i > 0 && isAsciiWordChar(content.charAt(i - 1)))) {
+                // 邮箱等前面紧跟字母数字的@不视为提及
+                continue;
+            }
+            Agent agent = null;
+            int end = i;
+            Node node = root;
+            for (int j = i + 1; j < length && node != null; j++) {
+                char c = content.charAt(j);
+                node = node.child(normalize(c));
+                if (node != null && node.agent != null
+                        && (j + 1 == length || !isAsciiWordChar(c) || !isAsciiNameChar(content.charAt(j + 1)))) {
+                    agent = node.agent;
+                    end = j;
+                }
+            }
+            if (agent != null) {
+                if (!containsAgent(matched, agent)) {
+                    matched.add(agent);
+                }
+                i = end;
+            }
+        }
+        return matched;
+    }
+
+    private static boolean containsAgent(List<Agent> agents, Agent agent) {
+        for (Agent existing : agents) {
+            if (existing == agent) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void insert(BuilderNode root, String name, Agent agent) {
+        if (name == null || name.isBlank()) {
+            return;
+        }
+        BuilderNode node = root;
+        for (int i = 0; i < name.length(); i++) {
+            node = node.children.computeIfAbsent(normalize(name.charAt(i)), c -> new BuilderNode());
+        }
+        if (node.agent == null) {
+            node.agent = agent;
+        }
+    }
+
+    private static char normalize(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static boolean isAsciiWordChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    private static boolean isAsciiNameChar(char c) {
+        return isAsciiWordChar(c) || c == '_' || c == '-';
+    }
+
+    /**
+     * 只读节点：子节点按字符排序，二分查找
+     */
+    private static final class Node {
+        private final char[] keys;
+        private final Node[] children;
+        private final Agent agent;
+
+        Node(char[] keys, Node[] children, Agent agent) {
+            this.keys = keys;
+            this.children = children;
+            this.agent = agent;
+        }
+
+        Node child(char c) {
+            int index = Arrays.binarySearch(keys, c);
+            return index >= 0 ? children[index] : null;
+        }
+    }
+
+    /**
+     * 构建期节点
+     */
+    private static final class BuilderNode {
+        private final Map<Character, BuilderNode> children = new TreeMap<>();
+        private Agent agent;
+
+        Node freeze() {
+            char[] keys = new char[children.size()];
+            Node[] frozen = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, BuilderNode> entry : children.entrySet()) {
+                keys[i] = entry.getKey();
+                frozen[i] = entry.getValue().freeze();
+                i++;
+            }
+            return new Node(keys, frozen, agent);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.lingxi.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+
+/**
+ * 九天流式数据帧解析工具类
+ * 使用Jackson流式JsonParser单次扫描数据帧，只读取需要的字段，不构建Map
+ *
+ * 支持的格式及优先级：
+ * 1. {"delta":"新增内容"}（忽略[EOS]结束标记）
+ * 2. {"response":"累计内容"}（按已发送长度计算增量）
+ * 3. {"choices":[{"delta":{"content":"..."}}]} 或 choices[0].delta.tool_calls（type=text的text，
+ *    或role=memory/assistant的content.output），其次choices[0].text
+ * 4. 顶层content、text字段
+ */
+@Slf4j
+@Component
+public class JiutianStreamFrameDecoder {
+
+    private static final String END_OF_STREAM = "[EOS]";
+
+    private final JsonFactory jsonFactory;
+
+    public JiutianStreamFrameDecoder(ObjectMapper objectMapper) {
+        this.jsonFactory = objectMapper.getFactory();
+    }
+
+    /**
+     * 解析单个数据帧，返回新增内容
+     *
+     * @param json           数据帧JSON
+     * @param currentLength  已累计的回复长度（用于response累计格式）
+     * @param onParseFailure 解析失败时的回调（用于记录指标），可为null
+     * @return 新增内容，无内容或解析失败时返回null
+     */
+    public String decode(String json, int currentLength, Runnable onParseFailure) {
+        Frame frame = new Frame();
+        try (JsonParser parser = jsonFactory.createParser(json)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                return null;
+            }
+            readFrame(parser, frame);
+        } catch (IOException e) {
+            log.warn("解析流式数据帧失败: {}", e.getMessage());
+            if (onParseFailure != null) {
+                onParseFailure.run();
+            }
+            return null;
+        }
+        return frame.resolve(currentLength);
+    }
+
+    private void readFrame(JsonParser parser, Frame frame) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "delta" -> frame.delta = stringOrSkip(parser, value);
+                case "response" -> frame.response = stringOrSkip(parser, value);
+                case "content" -> frame.content = stringOrSkip(parser, value);
+                case "text" -> frame.text = stringOrSkip(parser, value);
+                case "choices" -> readChoices(parser, value, frame);
+                default -> parser.skipChildren();
+            }
+        }
+    }
+
+    private void readChoices(JsonParser parser, JsonToken value, Frame frame) throws IOException {
+        if (value != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
+        boolean first = true;
+        JsonToken token;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (first && token == JsonToken.START_OBJECT) {
+                frame.hasChoice = true;
+                readFirstChoice(parser, frame);
+            } else {
+                parser.skipChildren();
+            }
+            first = false;
+        }
+    }
+
+    private void readFirstChoice(JsonParser parser, Frame frame) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("delta".equals(field) && value == JsonToken.START_OBJECT) {
+                readChoiceDelta(parser, frame);
+            } else if ("text".equals(field)) {
+                frame.choiceText = stringOrSkip(parser, value);
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    private void readChoiceDelta(JsonParser parser, Frame frame) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if ("content".equals(field)) {
+                frame.choiceContent = stringOrSkip(parser, value);
+            } else if ("tool_calls".equals(field) && value == JsonToken.START_ARRAY) {
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    String toolCallText = readToolCall(parser);
+                    if (frame.toolCallText == null) {
+                        frame.toolCallText = toolCallText;
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+    }
+
+    /**
+     * 读取单个tool_call：type=text取text，role=memory/assistant取content.output
+     */
+    private String readToolCall(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        String role = null;
+        String type = null;
+        String text = null;
+        String output = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            switch (field) {
+                case "role" -> role = stringOrSkip(parser, value);
+                case "type" -> type = stringOrSkip(parser, value);
+                case "text" -> text = stringOrSkip(parser, value);
+                case "content" -> output = readOutput(parser, value);
+                default -> parser.skipChildren();
+            }
+        }
+        if ("text".equals(type) && text != null) {
+            return text;
+        }
+        if (("memory".equals(role) || "assistant".equals(role)) && output != null) {
+            return output;
+        }
+        return null;
+    }
+
+    private String readOutput(JsonParser parser, JsonToken value) throws IOException {
+        if (value != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return null;
+        }
+        String output = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken fieldValue = parser.nextToken();
+            if ("output".equals(field)) {
+                output = stringOrSkip(parser, fieldValue);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return output;
+    }
+
+    private String stringOrSkip(JsonParser parser, JsonToken value) throws IOException {
+        if (value == JsonToken.VALUE_STRING) {
+            return parser.getText();
+        }
+        parser.skipChildren();
+        return null;
+    }
+
+    /**
+     * 单个数据帧中读取到的候选字段
+     */
+    private static class Frame {
+        private String delta;
+        private String response;
+        private boolean hasChoice;
+        private String choiceContent;
+        private String toolCallText;
+        private String choiceText;
+        private String content;
+        private String text;
+
+        String resolve(int currentLength) {
+            // 优先使用delta字段（新增内容），过滤掉结束标记
+            if (delta != null && !END_OF_STREAM.equals(delta) && !delta.trim().isEmpty()) {
+                return delta;
+            }
+
+            // response为累计内容，只返回新增部分
+            if (response != null && !response.trim().isEmpty()) {
+                return response.length() > currentLength ? response.substring(currentLength) : null;
+            }
+
+            if (hasChoice) {
+                if (choiceContent != null) {
+                    return choiceContent;
+                }
+                if (toolCallText != null) {
+                    return toolCallText;
+                }
+                if (choiceText != null) {
+                    return choiceText;
+                }
+            }
+
+            if (content != null) {
+                return content;
+            }
+            return text;
+        }
+    }
+}
@@ -5,19 +5,26 @@ import io.jsonwebtoken.*;
 import io.jsonwebtoken.security.Keys;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.userdetails.UserDetails;
 import org.springframework.stereotype.Component;
 
 import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 /**
  * JWT工具类
  * 负责JWT令牌的生成、解析和验证
+ * 验签通过的令牌按SHA-256哈希缓存声明直到过期，同一令牌的后续解析不再重复验签
  */
 @Slf4j
 @Component
@@ -32,8 +39,21 @@ public class JwtUtil {
     @Value("${app.jwt.refresh-token-expiration}")
     private Long refreshExpiration;
 
+    @Value("${app.jwt.verified-cache-size:10000}")
+    private int verifiedCacheSize;
+
+    // 令牌哈希 -> 已验签的声明
+    private final ConcurrentHashMap<String, VerifiedToken> verifiedTokens = new ConcurrentHashMap<>();
+
+    private volatile SecretKey signingKey;
+
     private SecretKey getSigningKey() {
-        return Keys.hmacShaKeyFor(secret.getBytes());
+        SecretKey key = signingKey;
+        if (key == null) {
+            key = Keys.hmacShaKeyFor(secret.getBytes());
+            signingKey = key;
+        }
+        return key;
     }
 
     /**
@@ -80,9 +100,31 @@ public class JwtUtil {
     }
 
     /**
-     * 从令牌中获取所有声明
+     * 从令牌中获取所有声明（优先使用验签缓存）
      */
     private Claims getAllClaimsFromToken(String token) {
+        String key = hashToken(token);
+        VerifiedToken cached = verifiedTokens.get(key);
+        if (cached != null) {
+            if (cached.expiresAt > System.currentTimeMillis()) {
+                return cached.claims;
+            }
+            // 已过期：移除后重新解析，由解析抛出ExpiredJwtException
+            verifiedTokens.remove(key);
+        }
+
+        Claims claims = parseClaims(token);
+        Date expirationDate = claims.getExpiration();
+        if (expirationDate != null && verifiedTokens.size() < verifiedCacheSize) {
+            verifiedTokens.put(key, new VerifiedToken(claims, expirationDate.getTime()));
+        }
+        return claims;
+    }
+
+    /**
+     * 验签并解析令牌
+     */
+    private Claims parseClaims(String token) {
         try {
             return Jwts.parser()
                     .verifyWith(getSigningKey())
@@ -107,6 +149,37 @@ public class JwtUtil {
         }
     }
 
+    /**
+     * 按令牌哈希移除验签缓存（令牌吊销时调用）
+     */
+    public void evictVerifiedTokenByHash(String tokenHash) {
+        verifiedTokens.remove(tokenHash);
+    }
+
+    /**
+     * 清理已过期的验签缓存
+     */
+    @Scheduled(fixedRate = 300000) // 每5分钟执行一次
+    public void cleanupVerifiedTokens() {
+        long now = System.currentTimeMillis();
+        verifiedTokens.values().removeIf(verified -> verified.expiresAt <= now);
+    }
+
+    /**
+     * 令牌的SHA-256哈希（Base64），用作缓存和吊销列表的键
+     */
+    public String hashToken(String token) {
+        if (token == null) {
+            throw new IllegalArgumentException("JWT token is null");
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
     /**
      * 检查令牌是否过期
      */
@@ -271,6 +344,19 @@ public class JwtUtil {
                 .build();
     }
 
+    /**
+     * 已验签的令牌声明
+     */
+    private static class VerifiedToken {
+        private final Claims claims;
+        private final long expiresAt;
+
+        VerifiedToken(Claims claims, long expiresAt) {
+            this.claims = claims;
+            this.expiresAt = expiresAt;
+        }
+    }
+
     /**
      * 令牌响应对象
      */
@@ -1,34 +1,93 @@
 package com.lingxi.websocket;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.lingxi.dto.AgentReplyEvent;
 import com.lingxi.entity.ChatHistory;
 import com.lingxi.service.ChatService;
+import com.lingxi.service.TokenRevocationService;
 import com.lingxi.util.JwtUtil;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.task.AsyncTaskExecutor;
 import org.springframework.stereotype.Component;
 import org.springframework.web.socket.*;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+import org.springframework.web.socket.handler.SessionLimitExceededException;
+import reactor.core.scheduler.Schedulers;
 
 import java.io.IOException;
 import java.net.URI;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * WebSocket聊天处理器
+ * 每个连接包装为ConcurrentWebSocketSessionDecorator：发送串行化且不阻塞调用线程，
+ * 慢客户端超过发送时间或缓冲区上限时按配置丢弃旧消息或断开连接
  */
 @Slf4j
 @Component
 @RequiredArgsConstructor
-public class ChatWebSocketHandler implements WebSocketHandler {
+public class ChatWebSocketHandler implements WebSocketHandler, MessageDeliveryBus.Delivery {
 
     private final ChatService chatService;
     private final JwtUtil jwtUtil;
+    private final TokenRevocationService tokenRevocationService;
     private final ObjectMapper objectMapper;
+    private final MeterRegistry meterRegistry;
+    private final AsyncTaskExecutor chatTaskExecutor;
 
     // 存储用户会话
-    private final Map<String, WebSocketSession> userSessions = new ConcurrentHashMap<>();
-    private final Map<String, Long> sessionUserMap = new ConcurrentHashMap<>();
+    private final WebSocketSessionRegistry sessionRegistry;
+    private final MessageDeliveryBus deliveryBus;
+
+    @Value("${websocket.send-time-limit:10000}")
+    private int sendTimeLimit;
+
+    @Value("${websocket.send-buffer-size-limit:524288}")
+    private int sendBufferSizeLimit;
+
+    // TERMINATE：断开慢客户端；DROP：丢弃最早的待发送消息
+    @Value("${websocket.overflow-strategy:TERMINATE}")
+    private ConcurrentWebSocketSessionDecorator.OverflowStrategy overflowStrategy;
+
+    // 流式片段合并：累计达到该长度（字符）或距首个片段超过该间隔（毫秒）即发出一帧
+    @Value("${websocket.stream.coalesce-max-size:512}")
+    private int coalesceMaxSize;
+
+    @Value("${websocket.stream.coalesce-interval:30}")
+    private long coalesceIntervalMs;
+
+    // WebSocket会话ID -> 该连接聊天消息处理链的末尾（同一连接的消息按接收顺序串行处理）
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> chatQueues = new ConcurrentHashMap<>();
+
+    private Counter overflowCounter;
+
+    @PostConstruct
+    public void init() {
+        deliveryBus.setDelivery(this);
+
+        Gauge.builder("websocket.sessions", sessionRegistry, WebSocketSessionRegistry::getSessionCount)
+                .description("当前WebSocket连接数")
+                .register(meterRegistry);
+        Gauge.builder("websocket.outbound.buffer.bytes", sessionRegistry, this::totalBufferedBytes)
+                .description("所有连接待发送缓冲区字节数")
+                .register(meterRegistry);
+        Gauge.builder("websocket.outbound.buffer.max.bytes", sessionRegistry, this::maxBufferedBytes)
+                .description("单个连接待发送缓冲区最大字节数")
+                .register(meterRegistry);
+        overflowCounter = Counter.builder("websocket.outbound.overflow")
+                .description("发送超时或缓冲区溢出被断开的连接数")
+                .tag("strategy", overflowStrategy.name())
+                .register(meterRegistry);
+    }
 
     @Override
     public void afterConnectionEstablished(WebSocketSession session) throws Exception {
@@ -37,7 +96,7 @@ public class ChatWebSocketHandler implements WebSocketHandler {
         try {
             // 从查询参数中获取token
             String token = extractTokenFromSession(session);
-            if (token == null || !jwtUtil.validateToken(token)) {
+            if (token == null || !jwtUtil.validateToken(token) || tokenRevocationService.isRevoked(token)) {
                 log.warn("Invalid token for WebSocket connection: {}", session.getId());
                 session.close(CloseStatus.NOT_ACCEPTABLE.withReason("Invalid token"));
                 return;
@@ -51,14 +110,20 @@ public class ChatWebSocketHandler implements WebSocketHandler {
                 return;
             }
             
-            // 存储会话映射
-            userSessions.put(session.getId(), session);
-            sessionUserMap.put(session.getId(), userId);
+            // 存储会话映射（以带发送队列的会话注册，后续所有发送都经过它）
+            WebSocketSession outbound = new ConcurrentWebSocketSessionDecorator(
+                    session, sendTimeLimit, sendBufferSizeLimit, overflowStrategy);
+            // 连接数上限在注册表内原子检查
+            if (!sessionRegistry.register(outbound, userId)) {
+                log.warn("WebSocket session limit reached, rejecting session: {}", session.getId());
+                session.close(CloseStatus.SERVICE_OVERLOAD.withReason("Too many connections"));
+                return;
+            }
             
             log.info("User {} connected via WebSocket session: {}", userId, session.getId());
             
             // 发送连接成功消息
-            sendMessage(session, createSystemMessage("connected", "连接成功", null));
+            sendMessage(outbound, createSystemMessage("connected", "连接成功", null));
             
         } catch (Exception e) {
             log.error("Error establishing WebSocket connection: {}", session.getId(), e);
@@ -67,11 +132,14 @@ public class ChatWebSocketHandler implements WebSocketHandler {
     }
 
     @Override
-    public void handleMessage(WebSocketSession session, WebSocketMessage<?> message) throws Exception {
+    public void handleMessage(WebSocketSession rawSession, WebSocketMessage<?> message) throws Exception {
         if (!(message instanceof TextMessage)) {
             return;
         }
         
+        WebSocketSession registered = sessionRegistry.getSession(rawSession.getId());
+        WebSocketSession session = registered != null ? registered : rawSession;
+        
         String payload = ((TextMessage) message).getPayload();
         log.debug("Received WebSocket message from session {}: {}", session.getId(), payload);
         
@@ -80,7 +148,7 @@ public class ChatWebSocketHandler implements WebSocketHandler {
             Map<String, Object> messageData = objectMapper.readValue(payload, Map.class);
             String messageType = (String) messageData.get("type");
             
-            Long userId = sessionUserMap.get(session.getId());
+            Long userId = sessionRegistry.getUserId(session.getId());
             if (userId == null) {
                 sendError(session, "用户未认证");
                 return;
@@ -123,8 +191,8 @@ public class ChatWebSocketHandler implements WebSocketHandler {
         log.info("WebSocket connection closed: {} with status: {}", session.getId(), closeStatus);
         
         // 清理会话映射
-        userSessions.remove(session.getId());
-        sessionUserMap.remove(session.getId());
+        sessionRegistry.unregister(session);
+        chatQueues.remove(session.getId());
     }
 
     @Override
@@ -134,36 +202,85 @@ public class ChatWebSocketHandler implements WebSocketHandler {
     
     /**
      * 处理聊天消息
+     * 用户消息在聊天任务执行器上处理，同一连接的消息按接收顺序串行保存和确认；
+     * 指定agentId时流式推送智能体回复（chunk帧），回复流异步进行，不阻塞该连接的下一条消息
      */
     private void handleChatMessage(WebSocketSession session, Long userId, Map<String, Object> messageData) {
-        try {
-            String content = (String) messageData.get("content");
-            String sessionId = (String) messageData.get("sessionId");
-            String metadata = (String) messageData.get("metadata");
-            
-            if (content == null || content.trim().isEmpty()) {
-                sendError(session, "消息内容不能为空");
-                return;
-            }
-            
-            if (sessionId == null || sessionId.trim().isEmpty()) {
-                sendError(session, "会话ID不能为空");
-                return;
-            }
-            
-            // 处理用户消息
-            ChatHistory userMessage = chatService.processUserMessage(userId, sessionId, content, metadata);
-            
-            // 发送用户消息确认
-            sendMessage(session, createChatMessage("user_message", userMessage));
-            
-            // 智能体响应会通过ChatService异步处理，这里可以发送处理中状态
-            sendMessage(session, createSystemMessage("processing", "正在处理智能体响应...", sessionId));
-            
-        } catch (Exception e) {
-            log.error("Error handling chat message from user: {}", userId, e);
-            sendError(session, "发送消息失败: " + e.getMessage());
+        String content = (String) messageData.get("content");
+        String sessionId = (String) messageData.get("sessionId");
+        String metadata = (String) messageData.get("metadata");
+        Long agentId = messageData.get("agentId") != null ?
+                Long.valueOf(messageData.get("agentId").toString()) : null;
+        
+        if (content == null || content.trim().isEmpty()) {
+            sendError(session, "消息内容不能为空");
+            return;
         }
+        
+        if (sessionId == null || sessionId.trim().isEmpty()) {
+            sendError(session, "会话ID不能为空");
+            return;
+        }
+        
+        Runnable task = () -> {
+            try {
+                // 处理用户消息
+                ChatHistory userMessage = chatService.processUserMessage(userId, sessionId, content, metadata);
+                
+                // 发送用户消息确认
+                sendMessage(session, createChatMessage("user_message", userMessage));
+                
+                if (agentId != null) {
+                    streamAgentResponse(session, userMessage, agentId, sessionId);
+                }
+                
+            } catch (Exception e) {
+                log.error("Error handling chat message from user: {}", userId, e);
+                sendError(session, "发送消息失败: " + e.getMessage());
+            }
+        };
+        chatQueues.compute(session.getId(), (id, tail) -> (tail != null ? tail : CompletableFuture.<Void>completedFuture(null))
+                .thenRunAsync(task, chatTaskExecutor)
+                .exceptionally(e -> {
+                    // 执行器拒绝等异常不中断该连接后续消息的处理链
+                    log.error("Error scheduling chat message from user: {}", userId, e);
+                    sendError(session, "服务繁忙，请稍后再试");
+                    return null;
+                }));
+    }
+    
+    /**
+     * 流式推送智能体回复：合并后的chunk帧，结束时推送agent_response
+     */
+    private void streamAgentResponse(WebSocketSession session, ChatHistory userMessage, Long agentId, String sessionId) throws IOException {
+        sendMessage(session, createSystemMessage("processing", "正在处理智能体响应...", sessionId));
+        
+        ChunkCoalescer coalescer = new ChunkCoalescer(coalesceMaxSize, coalesceIntervalMs, Schedulers.parallel(),
+                chunk -> sendQuietly(session, Map.of(
+                        "type", "chunk",
+                        "sessionId", sessionId,
+                        "agentId", agentId,
+                        "chunk", chunk,
+                        "timestamp", System.currentTimeMillis()
+                )));
+        
+        // 连接关闭后在下一个事件处取消订阅，中断上游读取
+        chatService.streamAgentResponseById(userMessage, agentId)
+                .takeWhile(event -> session.isOpen())
+                .subscribe(
+                        event -> {
+                            if (event.isComplete()) {
+                                coalescer.flush();
+                                sendQuietly(session, createChatMessage("agent_response", event.getChatHistory()));
+                            } else {
+                                coalescer.append(event.getChunk());
+                            }
+                        },
+                        error -> {
+                            coalescer.flush();
+                            log.error("Error streaming agent {} response over WebSocket: {}", agentId, session.getId(), error);
+                            sendError(session, "智能体回复失败: " + error.getMessage());
+                        });
     }
     
     /**
@@ -241,21 +358,35 @@ public class ChatWebSocketHandler implements WebSocketHandler {
     }
     
     /**
-     * 发送智能体响应（供ChatService调用）
+     * 发送智能体响应（供ChatService调用），经投递总线送达持有该用户连接的节点
      */
     public void sendAgentResponse(Long userId, ChatHistory agentResponse) {
-        // 查找用户的WebSocket会话
-        for (Map.Entry<String, Long> entry : sessionUserMap.entrySet()) {
-            if (entry.getValue().equals(userId)) {
-                WebSocketSession session = userSessions.get(entry.getKey());
-                if (session != null && session.isOpen()) {
-                    try {
-                        sendMessage(session, createChatMessage("agent_response", agentResponse));
-                    } catch (Exception e) {
-                        log.error("Error sending agent response to user: {}", userId, e);
-                    }
-                }
-            }
+        try {
+            deliveryBus.publishToUser(userId, objectMapper.writeValueAsString(createChatMessage("agent_response", agentResponse)));
+        } catch (Exception e) {
+            log.error("Error sending agent response to user: {}", userId, e);
+        }
+    }
+    
+    /**
+     * 后台生成的智能体回复（如@提及）完成后推送给用户
+     */
+    @EventListener
+    public void onAgentReply(AgentReplyEvent event) {
+        sendAgentResponse(event.getUserId(), event.getReply());
+    }
+    
+    @Override
+    public void deliverToUser(Long userId, String payload) {
+        for (WebSocketSession session : sessionRegistry.getUserSessions(userId)) {
+            sendText(session, payload);
+        }
+    }
+    
+    @Override
+    public void deliverBroadcast(String payload) {
+        for (WebSocketSession session : sessionRegistry.getAllSessions()) {
+            sendText(session, payload);
         }
     }
     
@@ -265,7 +396,71 @@ public class ChatWebSocketHandler implements WebSocketHandler {
     private void sendMessage(WebSocketSession session, Object message) throws IOException {
         if (session.isOpen()) {
             String json = objectMapper.writeValueAsString(message);
-            session.sendMessage(new TextMessage(json));
+            try {
+                session.sendMessage(new TextMessage(json));
+            } catch (SessionLimitExceededException e) {
+                handleSlowConsumer(session, e);
+            }
+        }
+    }
+    
+    /**
+     * 发送已序列化的消息，失败只记录日志
+     */
+    private void sendText(WebSocketSession session, String payload) {
+        if (!session.isOpen()) {
+            return;
+        }
+        try {
+            session.sendMessage(new TextMessage(payload));
+        } catch (SessionLimitExceededException e) {
+            handleSlowConsumer(session, e);
+        } catch (Exception e) {
+            log.error("Error sending message to session: {}", session.getId(), e);
+        }
+    }
+    
+    /**
+     * 慢客户端：发送超时或缓冲区超限，关闭连接
+     */
+    private void handleSlowConsumer(WebSocketSession session, SessionLimitExceededException e) {
+        overflowCounter.increment();
+        log.warn("Closing slow WebSocket consumer {}: {}", session.getId(), e.getMessage());
+        try {
+            session.close(e.getStatus());
+        } catch (IOException closeError) {
+            log.debug("Error closing slow WebSocket session: {}", session.getId(), closeError);
+        }
+    }
+    
+    private double totalBufferedBytes(WebSocketSessionRegistry registry) {
+        long total = 0;
+        for (WebSocketSession session : registry.getAllSessions()) {
+            if (session instanceof ConcurrentWebSocketSessionDecorator decorator) {
+                total += decorator.getBufferSize();
+            }
+        }
+        return total;
+    }
+    
+    private double maxBufferedBytes(WebSocketSessionRegistry registry) {
+        int max = 0;
+        for (WebSocketSession session : registry.getAllSessions()) {
+            if (session instanceof ConcurrentWebSocketSessionDecorator decorator) {
+                max = Math.max(max, decorator.getBufferSize());
+            }
+        }
+        return max;
+    }
+    
+    /**
+     * 发送消息，失败只记录日志（用于流式回调）
+     */
+    private void sendQuietly(WebSocketSession session, Object message) {
+        try {
+            sendMessage(session, message);
+        } catch (Exception e) {
+            log.debug("Error sending WebSocket message to session: {}", session.getId(), e);
         }
     }
     
@@ -350,36 +545,27 @@ public class ChatWebSocketHandler implements WebSocketHandler {
     }
     
     /**
-     * 广播消息给所有在线用户
+     * 广播消息给所有在线用户（所有节点）
      */
     public void broadcastMessage(Object message) {
-        for (WebSocketSession session : userSessions.values()) {
-            if (session.isOpen()) {
-                try {
-                    sendMessage(session, message);
-                } catch (Exception e) {
-                    log.error("Error broadcasting message to session: {}", session.getId(), e);
-                }
-            }
+        try {
+            deliveryBus.publishBroadcast(objectMapper.writeValueAsString(message));
+        } catch (Exception e) {
+            log.error("Error broadcasting message", e);
         }
     }
     
     /**
-     * 获取在线用户数
+     * 获取本节点在线连接数
      */
     public int getOnlineUserCount() {
-        return (int) userSessions.values().stream()
-                .filter(WebSocketSession::isOpen)
-                .count();
+        return sessionRegistry.getSessionCount();
     }
     
     /**
      * 获取用户是否在线
      */
     public boolean isUserOnline(Long userId) {
-        return sessionUserMap.containsValue(userId) && 
-               sessionUserMap.entrySet().stream()
-                   .anyMatch(entry -> entry.getValue().equals(userId) && 
-                            userSessions.get(entry.getKey()).isOpen());
+        return sessionRegistry.isUserOnline(userId);
     }
 }
\ No newline at end of file
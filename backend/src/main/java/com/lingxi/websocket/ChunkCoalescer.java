@@ -0,0 +1,62 @@
+package com.lingxi.websocket;
+
+import reactor.core.Disposable;
+import reactor.core.scheduler.Scheduler;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * 流式片段合并器
+ * 将上游的细碎片段合并为较少的帧：累计长度达到上限立即发出，否则在首个片段到达后
+ * 等待固定间隔再发出，首字延迟最多增加一个间隔。
+ * 发出操作在锁内执行，定时发出与flush之间保持顺序
+ */
+public class ChunkCoalescer {
+
+    private final int maxSize;
+    private final long intervalMs;
+    private final Scheduler scheduler;
+    private final Consumer<String> emitter;
+
+    private final StringBuilder buffer = new StringBuilder();
+    private Disposable scheduledFlush;
+
+    public ChunkCoalescer(int maxSize, long intervalMs, Scheduler scheduler, Consumer<String> emitter) {
+        this.maxSize = maxSize;
+        this.intervalMs = intervalMs;
+        this.scheduler = scheduler;
+        this.emitter = emitter;
+    }
+
+    /**
+     * 追加片段
+     */
+    public synchronized void append(String chunk) {
+        if (chunk == null || chunk.isEmpty()) {
+            return;
+        }
+        buffer.append(chunk);
+        if (buffer.length() >= maxSize || intervalMs <= 0) {
+            flush();
+        } else if (scheduledFlush == null) {
+            scheduledFlush = scheduler.schedule(this::flush, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 立即发出缓冲的内容
+     */
+    public synchronized void flush() {
+        if (scheduledFlush != null) {
+            scheduledFlush.dispose();
+            scheduledFlush = null;
+        }
+        if (buffer.length() == 0) {
+            return;
+        }
+        String frame = buffer.toString();
+        buffer.setLength(0);
+        emitter.accept(frame);
+    }
+}
@@ -0,0 +1,43 @@
+package com.lingxi.websocket;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * 进程内投递总线（单节点部署）
+ */
+@Component
+@ConditionalOnProperty(name = "websocket.delivery-bus", havingValue = "local", matchIfMissing = true)
+public class LocalMessageDeliveryBus implements MessageDeliveryBus {
+
+    private volatile Delivery delivery;
+
+    @Override
+    public void setDelivery(Delivery delivery) {
+        this.delivery = delivery;
+    }
+
+    @Override
+    public void publishToUser(Long userId, String payload) {
+        if (delivery != null) {
+            delivery.deliverToUser(userId, payload);
+        }
+    }
+
+    @Override
+    public void publishBroadcast(String payload) {
+        if (delivery != null) {
+            delivery.deliverBroadcast(payload);
+        }
+    }
+
+    @Override
+    public void subscribeUser(Long userId) {
+        // 进程内投递无需订阅
+    }
+
+    @Override
+    public void unsubscribeUser(Long userId) {
+        // 进程内投递无需订阅
+    }
+}
@@ -0,0 +1,44 @@
+package com.lingxi.websocket;
+
+/**
+ * WebSocket消息投递总线
+ * 发往用户或广播的消息先发布到总线，再由持有对应连接的节点投递到本地会话。
+ * 通过websocket.delivery-bus选择实现：local（单节点，进程内直接投递）或redis（多节点，Redis发布/订阅）
+ */
+public interface MessageDeliveryBus {
+
+    /**
+     * 设置本节点的投递处理器
+     */
+    void setDelivery(Delivery delivery);
+
+    /**
+     * 发布发往指定用户所有连接的消息
+     */
+    void publishToUser(Long userId, String payload);
+
+    /**
+     * 发布发往所有在线连接的消息
+     */
+    void publishBroadcast(String payload);
+
+    /**
+     * 本节点开始持有该用户的连接
+     */
+    void subscribeUser(Long userId);
+
+    /**
+     * 本节点不再持有该用户的连接
+     */
+    void unsubscribeUser(Long userId);
+
+    /**
+     * 本地投递处理器
+     */
+    interface Delivery {
+
+        void deliverToUser(Long userId, String payload);
+
+        void deliverBroadcast(String payload);
+    }
+}
@@ -0,0 +1,91 @@
+package com.lingxi.websocket;
+
+import jakarta.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Redis发布/订阅投递总线（多节点部署，无需会话粘滞）
+ * 每个用户一个频道，节点只订阅本地持有连接的用户频道；广播使用公共频道
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+@ConditionalOnProperty(name = "websocket.delivery-bus", havingValue = "redis")
+public class RedisMessageDeliveryBus implements MessageDeliveryBus, MessageListener {
+
+    private static final String USER_CHANNEL_PREFIX = "ws:user:";
+    private static final String BROADCAST_CHANNEL = "ws:broadcast";
+
+    private final StringRedisTemplate stringRedisTemplate;
+    private final RedisMessageListenerContainer listenerContainer;
+
+    private volatile Delivery delivery;
+
+    @PostConstruct
+    public void init() {
+        listenerContainer.addMessageListener(this, new ChannelTopic(BROADCAST_CHANNEL));
+        log.info("WebSocket delivery bus: redis");
+    }
+
+    @Override
+    public void setDelivery(Delivery delivery) {
+        this.delivery = delivery;
+    }
+
+    @Override
+    public void publishToUser(Long userId, String payload) {
+        publish(USER_CHANNEL_PREFIX + userId, payload);
+    }
+
+    @Override
+    public void publishBroadcast(String payload) {
+        publish(BROADCAST_CHANNEL, payload);
+    }
+
+    @Override
+    public void subscribeUser(Long userId) {
+        listenerContainer.addMessageListener(this, new ChannelTopic(USER_CHANNEL_PREFIX + userId));
+    }
+
+    @Override
+    public void unsubscribeUser(Long userId) {
+        listenerContainer.removeMessageListener(this, new ChannelTopic(USER_CHANNEL_PREFIX + userId));
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        Delivery current = delivery;
+        if (current == null) {
+            return;
+        }
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        String payload = new String(message.getBody(), StandardCharsets.UTF_8);
+        try {
+            if (BROADCAST_CHANNEL.equals(channel)) {
+                current.deliverBroadcast(payload);
+            } else if (channel.startsWith(USER_CHANNEL_PREFIX)) {
+                current.deliverToUser(Long.valueOf(channel.substring(USER_CHANNEL_PREFIX.length())), payload);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Failed to deliver WebSocket message from channel {}: {}", channel, e.getMessage());
+        }
+    }
+
+    private void publish(String channel, String payload) {
+        try {
+            stringRedisTemplate.convertAndSend(channel, payload);
+        } catch (Exception e) {
+            log.error("Failed to publish WebSocket message to channel {}: {}", channel, e.getMessage());
+        }
+    }
+}
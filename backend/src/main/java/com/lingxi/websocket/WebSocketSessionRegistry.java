@@ -0,0 +1,129 @@
+package com.lingxi.websocket;
+
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.web.socket.WebSocketSession;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * WebSocket会话注册表
+ * 按用户ID建立索引，投递消息和在线判断不再遍历全部连接。
+ * 连接数上限在注册时原子检查，并发建立连接不会超出websocket.max-sessions。
+ * 索引中的集合为空时在compute内原子移除，避免并发连接/断开时遗留或误删条目。
+ * 用户的首个连接注册、最后一个连接注销时在同一compute内订阅/退订投递总线，保证顺序
+ */
+@Component
+@RequiredArgsConstructor
+public class WebSocketSessionRegistry {
+
+    private final MessageDeliveryBus deliveryBus;
+
+    // WebSocket会话ID -> 会话
+    private final ConcurrentHashMap<String, WebSocketSession> sessions = new ConcurrentHashMap<>();
+
+    // WebSocket会话ID -> 用户ID
+    private final ConcurrentHashMap<String, Long> sessionUsers = new ConcurrentHashMap<>();
+
+    // 用户ID -> 该用户的所有连接
+    private final ConcurrentHashMap<Long, Set<WebSocketSession>> userSessions = new ConcurrentHashMap<>();
+
+    // 已注册（含正在注册）的连接数，用于原子地执行连接数上限
+    private final AtomicInteger sessionCount = new AtomicInteger();
+
+    @Value("${websocket.max-sessions:20000}")
+    private int maxSessions;
+
+    /**
+     * 注册已认证的连接（传入发送用的会话，可为装饰后的会话，各索引均以此实例为准）
+     *
+     * @return 连接数已达上限时返回false，不注册
+     */
+    public boolean register(WebSocketSession session, Long userId) {
+        if (sessionCount.incrementAndGet() > maxSessions) {
+            sessionCount.decrementAndGet();
+            return false;
+        }
+        if (sessions.putIfAbsent(session.getId(), session) != null) {
+            // 重复注册同一连接不重复计数
+            sessionCount.decrementAndGet();
+            return true;
+        }
+        sessionUsers.put(session.getId(), userId);
+        userSessions.compute(userId, (id, set) -> {
+            Set<WebSocketSession> result = set;
+            if (result == null) {
+                result = ConcurrentHashMap.newKeySet();
+                deliveryBus.subscribeUser(id);
+            }
+            result.add(session);
+            return result;
+        });
+        return true;
+    }
+
+    /**
+     * 注销连接并清理所有索引
+     */
+    public void unregister(WebSocketSession session) {
+        String wsId = session.getId();
+        WebSocketSession registered = sessions.remove(wsId);
+        if (registered == null) {
+            return;
+        }
+        sessionCount.decrementAndGet();
+        Long userId = sessionUsers.remove(wsId);
+        if (userId != null) {
+            userSessions.computeIfPresent(userId, (id, set) -> {
+                set.remove(registered);
+                if (set.isEmpty()) {
+                    deliveryBus.unsubscribeUser(id);
+                    return null;
+                }
+                return set;
+            });
+        }
+    }
+
+    /**
+     * 获取注册时传入的发送用会话
+     */
+    public WebSocketSession getSession(String wsSessionId) {
+        return sessions.get(wsSessionId);
+    }
+
+    public Long getUserId(String wsSessionId) {
+        return sessionUsers.get(wsSessionId);
+    }
+
+    public Set<WebSocketSession> getUserSessions(Long userId) {
+        Set<WebSocketSession> set = userSessions.get(userId);
+        return set != null ? set : Collections.emptySet();
+    }
+
+    public Iterable<WebSocketSession> getAllSessions() {
+        return sessions.values();
+    }
+
+    public boolean isUserOnline(Long userId) {
+        return userSessions.containsKey(userId);
+    }
+
+    /**
+     * 当前连接数
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * 当前在线用户数
+     */
+    public int getUserCount() {
+        return userSessions.size();
+    }
+}